@@ -0,0 +1,197 @@
+package dao;
+
+import model.CartItem;
+import utils.TtlCache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user cart contents for CartServlet GET, so badge refreshes and page loads do not hit D_D_CART.
+ *
+ * Cart writes go to the DB first (CartService) and are then applied here, so a cached
+ * cart never shows a change the DB does not have. Entries are dropped on logout and
+ * session expiry (CartSessionListener), after cart.cache.idleMs without access, and
+ * least recently used first beyond cart.cache.maxUsers. Writers outside CartService
+ * (reorder, checkout) call invalidate.
+ *
+ * A miss puts an empty slot before reading D_D_CART and fills only that same slot afterwards.
+ * An update arriving in between finds the slot still empty and drops it, so a cart read
+ * before the update's commit is never cached.
+ *
+ * Updates carry absolute quantities and reach the cache in whatever order their request
+ * threads get there, which need not be their commit order. So CartServlet wraps each one in
+ * a Write: an update that overlapped another for the same user drops the entry instead of
+ * patching it, and only an update that ran alone is applied.
+ */
+public class CartCache {
+
+    private static final long IDLE_MILLIS = Long.getLong("cart.cache.idleMs", 30 * 60_000L);
+    private static final int MAX_USERS = Integer.getInteger("cart.cache.maxUsers", 10000);
+    private static final long PURGE_INTERVAL_MILLIS = 60_000L;
+
+    private static final CartCache INSTANCE = new CartCache();
+
+    private final TtlCache<Integer, Slot> carts = new TtlCache<>("carts", MAX_USERS, IDLE_MILLIS, true);
+    private volatile long lastPurge = System.currentTimeMillis();
+    // users with cart updates in progress
+    private final Map<Integer, Writers> writers = new ConcurrentHashMap<>();
+
+    private CartCache() {
+    }
+
+    public static CartCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Cart of the user, loading it through CartDao on a miss.
+     */
+    public List<CartItem> getCart(int userId, CartDao cartDao) throws SQLException {
+        Slot cached = carts.get(userId);
+        if (cached != null && cached.items != null) return copyOf(cached.items);
+
+        Slot loading = new Slot(null);
+        carts.put(userId, loading);
+        List<CartItem> items = cartDao.getCartItems(userId);
+        if (items != null) {
+            Slot loaded = new Slot(copyOf(items));
+            carts.updateIfPresent(userId, current -> current == loading ? loaded : current);
+            purgeIfDue();
+        } else {
+            carts.updateIfPresent(userId, current -> current == loading ? null : current);
+        }
+        return items;
+    }
+
+    /**
+     * Start a cart update for the user; close the Write once it is over, whatever the outcome.
+     */
+    public Write beginWrite(int userId) {
+        writers.compute(userId, (id, w) -> {
+            if (w == null) w = new Writers();
+            if (++w.active > 1) w.overlapped = true;
+            return w;
+        });
+        return new Write(userId);
+    }
+
+    // applied under the user's writers entry, so no other update of that user starts or ends meanwhile
+    private void finish(Write write) {
+        writers.compute(write.userId, (id, w) -> {
+            boolean alone = w.active == 1 && !w.overlapped;
+            if (write.clear) {
+                if (alone) putEmpty(id);
+                else invalidate(id);
+            } else if (write.lines != null) {
+                if (alone) applyLines(id, write.lines);
+                else invalidate(id);
+            }
+            return --w.active == 0 ? null : w;
+        });
+    }
+
+    /**
+     * Apply the changed lines of a committed cart update. A line that is not cached yet has no
+     * image in the update, so the user's entry is dropped and reloaded on the next read instead.
+     */
+    private void applyLines(int userId, List<CartItem> lines) {
+        carts.updateIfPresent(userId, slot -> {
+            // still loading: that read may predate this update, so it must not be stored
+            if (slot.items == null) return null;
+            List<CartItem> updated = copyOf(slot.items);
+            for (CartItem line : lines) {
+                CartItem existing = null;
+                for (CartItem it : updated) {
+                    if (it.getProductId() == line.getProductId()) {
+                        existing = it;
+                        break;
+                    }
+                }
+                if (line.getQty() <= 0) {
+                    if (existing != null) updated.remove(existing);
+                } else if (existing != null) {
+                    existing.setQty(line.getQty());
+                    existing.setPrice(line.getPrice());
+                } else {
+                    return null;
+                }
+            }
+            return new Slot(updated);
+        });
+    }
+
+    private void putEmpty(int userId) {
+        carts.put(userId, new Slot(new ArrayList<>()));
+    }
+
+    public void invalidate(int userId) {
+        carts.remove(userId);
+    }
+
+    public Map<String, Object> stats() {
+        return carts.stats();
+    }
+
+    private void purgeIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge >= PURGE_INTERVAL_MILLIS) {
+            lastPurge = now;
+            carts.purgeExpired();
+        }
+    }
+
+    /**
+     * One cart update of a user. Record what it committed with applyLines or putEmpty; close
+     * applies it, or drops the cached cart if another update overlapped.
+     */
+    public final class Write implements AutoCloseable {
+        private final int userId;
+        private List<CartItem> lines;
+        private boolean clear;
+
+        private Write(int userId) {
+            this.userId = userId;
+        }
+
+        public void applyLines(List<CartItem> lines) {
+            this.lines = lines;
+        }
+
+        public void putEmpty() {
+            this.clear = true;
+        }
+
+        @Override
+        public void close() {
+            finish(this);
+        }
+    }
+
+    private static final class Writers {
+        int active;
+        // another update started while one was in progress; reset once none is
+        boolean overlapped;
+    }
+
+    // a user's cached cart; items is null while the first read is in progress
+    private static final class Slot {
+        final List<CartItem> items;
+
+        Slot(List<CartItem> items) {
+            this.items = items;
+        }
+    }
+
+    // CartItem is mutable, so neither the cached list nor its items are handed out
+    private static List<CartItem> copyOf(List<CartItem> items) {
+        List<CartItem> out = new ArrayList<>(items.size());
+        for (CartItem it : items) {
+            out.add(new CartItem(it.getProductId(), it.getName(), it.getPrice(), it.getImage(), it.getQty()));
+        }
+        return out;
+    }
+}
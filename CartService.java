@@ -0,0 +1,292 @@
+package dao;
+
+import model.CartItem;
+import model.CartUpdate;
+import utils.DBUtils;
+import utils.LoggerUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cart mutations for CartServlet.
+ *
+ * Each action is a single T-SQL batch (one round trip, one transaction) that locks the
+ * affected D_D_CART rows, works out old and new quantities, checks and moves stock for
+ * the difference, writes the cart rows, and returns only the changed lines plus cart
+ * totals. Stock of hot products is moved through HotStockEngine after the batch.
+ */
+public class CartService {
+
+    private static final Logger logger = LoggerUtil.getLogger(CartService.class);
+
+    // 4 parameters per line, kept under SQL Server's 2100 parameter limit
+    public static final int MAX_LINES = 500;
+
+    private static final String BODY =
+            "DECLARE @chg TABLE (product_id INT PRIMARY KEY, old_qty INT NOT NULL, new_qty INT NOT NULL, hot BIT NOT NULL);"
+            + " DECLARE @stock TABLE (product_id INT PRIMARY KEY, stock INT NOT NULL);"
+            + " BEGIN TRAN;"
+            + " INSERT INTO @chg (product_id, old_qty, new_qty, hot)"
+            + "  SELECT r.product_id, ISNULL(c.quantity, 0),"
+            + "   CASE WHEN r.absolute = 1 THEN r.val ELSE ISNULL(c.quantity, 0) + r.val END, r.hot"
+            + "  FROM @req r LEFT JOIN Ecommerce_Website.D_D_CART c WITH (UPDLOCK, HOLDLOCK)"
+            + "   ON c.user_id = @user AND c.product_id = r.product_id;"
+            + " UPDATE @chg SET new_qty = 0 WHERE new_qty < 0;"
+            + " DELETE FROM @chg WHERE new_qty = old_qty;"
+            + " IF EXISTS (SELECT 1 FROM @chg g LEFT JOIN Ecommerce_Website.M_S_DATAS d WITH (UPDLOCK, HOLDLOCK) ON d.product_id = g.product_id"
+            + "   WHERE g.hot = 0 AND g.new_qty > g.old_qty AND (d.product_id IS NULL OR d.stock < g.new_qty - g.old_qty))"
+            + " BEGIN"
+            + "  SELECT TOP 1 'short' AS result, g.product_id FROM @chg g LEFT JOIN Ecommerce_Website.M_S_DATAS d ON d.product_id = g.product_id"
+            + "   WHERE g.hot = 0 AND g.new_qty > g.old_qty AND (d.product_id IS NULL OR d.stock < g.new_qty - g.old_qty);"
+            + "  ROLLBACK;"
+            + "  RETURN;"
+            + " END;"
+            + " UPDATE d SET d.stock = d.stock - (g.new_qty - g.old_qty)"
+            + "  OUTPUT inserted.product_id, inserted.stock INTO @stock"
+            + "  FROM Ecommerce_Website.M_S_DATAS d JOIN @chg g ON g.product_id = d.product_id WHERE g.hot = 0;"
+            + " DELETE c FROM Ecommerce_Website.D_D_CART c JOIN @chg g ON g.product_id = c.product_id"
+            + "  WHERE c.user_id = @user AND g.new_qty = 0;"
+            + " UPDATE c SET c.quantity = g.new_qty, c.updatedat = GETDATE()"
+            + "  FROM Ecommerce_Website.D_D_CART c JOIN @chg g ON g.product_id = c.product_id"
+            + "  WHERE c.user_id = @user AND g.new_qty > 0 AND g.old_qty > 0;"
+            + " INSERT INTO Ecommerce_Website.D_D_CART (user_id, product_id, quantity, updatedat)"
+            + "  SELECT @user, product_id, new_qty, GETDATE() FROM @chg WHERE old_qty = 0 AND new_qty > 0;"
+            + " COMMIT;"
+            + " SELECT 'ok' AS result, NULL AS product_id;"
+            + " SELECT g.product_id, g.old_qty, g.new_qty, g.hot, s.stock, d.product_name, d.price"
+            + "  FROM @chg g LEFT JOIN @stock s ON s.product_id = g.product_id"
+            + "  LEFT JOIN Ecommerce_Website.M_S_DATAS d ON d.product_id = g.product_id;"
+            + " SELECT COUNT(1) AS item_count, ISNULL(SUM(c.quantity), 0) AS total_qty,"
+            + "  ISNULL(SUM(c.quantity * d.price), 0) AS total_amount"
+            + "  FROM Ecommerce_Website.D_D_CART c JOIN Ecommerce_Website.M_S_DATAS d ON d.product_id = c.product_id"
+            + "  WHERE c.user_id = @user;";
+
+    private static final String HEAD =
+            "SET NOCOUNT ON; SET XACT_ABORT ON;"
+            + " DECLARE @user INT = ?;"
+            + " DECLARE @req TABLE (product_id INT PRIMARY KEY, val INT NOT NULL, absolute BIT NOT NULL, hot BIT NOT NULL);";
+
+    private final HotStockEngine hotStock = HotStockEngine.getInstance();
+    private final ProductCache cache = ProductCache.getInstance();
+
+    /**
+     * Add qty to the line (creating it if needed).
+     */
+    public CartUpdate add(int userId, int productId, int qty) throws SQLException {
+        Map<Integer, Integer> one = new HashMap<>();
+        one.put(productId, qty);
+        return apply(userId, one, false);
+    }
+
+    /**
+     * Set the line to qty; 0 removes it.
+     */
+    public CartUpdate setQuantity(int userId, int productId, int qty) throws SQLException {
+        Map<Integer, Integer> one = new HashMap<>();
+        one.put(productId, qty);
+        return apply(userId, one, true);
+    }
+
+    public CartUpdate remove(int userId, int productId) throws SQLException {
+        return setQuantity(userId, productId, 0);
+    }
+
+    /**
+     * Apply several quantity deltas (productId -> +/- qty) at once, all or nothing.
+     * Quantities never go below 0; a line that reaches 0 is removed.
+     */
+    public CartUpdate applyDeltas(int userId, Map<Integer, Integer> deltas) throws SQLException {
+        return apply(userId, deltas, false);
+    }
+
+    /**
+     * Empty the cart and put all its stock back, in one statement batch.
+     */
+    public CartUpdate clear(int userId) throws SQLException {
+        StringBuilder sql = new StringBuilder(HEAD);
+        sql.append(" INSERT INTO @req (product_id, val, absolute, hot)")
+           .append(" SELECT product_id, 0, 1, 0 FROM Ecommerce_Website.D_D_CART WHERE user_id = @user GROUP BY product_id;");
+        List<Integer> params = new ArrayList<>();
+        params.add(userId);
+        Set<Integer> hot = hotStock.hotProducts();
+        if (!hot.isEmpty()) {
+            sql.append(" UPDATE @req SET hot = 1 WHERE product_id IN (");
+            boolean first = true;
+            for (Integer pid : hot) {
+                sql.append(first ? "?" : ", ?");
+                params.add(pid);
+                first = false;
+            }
+            sql.append(");");
+        }
+        sql.append(' ').append(BODY);
+        Outcome out = execute(sql.toString(), params);
+        return out.update.isOk() ? settleHotStock(userId, out, new HashMap<>()) : out.update;
+    }
+
+    private CartUpdate apply(int userId, Map<Integer, Integer> values, boolean absolute) throws SQLException {
+        if (values.size() > MAX_LINES) throw new IllegalArgumentException("Too many cart lines");
+
+        // a positive delta on a hot product moves exactly that much stock, so reserve it up front
+        Map<Integer, Integer> reserved = new HashMap<>();
+        if (!absolute) {
+            for (Map.Entry<Integer, Integer> e : values.entrySet()) {
+                if (e.getValue() > 0 && hotStock.isHot(e.getKey())) {
+                    if (hotStock.reserve(e.getKey(), e.getValue()) < 0) {
+                        releaseAll(reserved);
+                        return shortOf(e.getKey());
+                    }
+                    reserved.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        List<int[]> rows = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> e : values.entrySet()) {
+            rows.add(new int[]{e.getKey(), e.getValue(), absolute ? 1 : 0, hotStock.isHot(e.getKey()) ? 1 : 0});
+        }
+        Outcome out;
+        try {
+            out = execute(rowsSql(rows), rowParams(userId, rows));
+        } catch (SQLException | RuntimeException e) {
+            releaseAll(reserved);
+            throw e;
+        }
+        if (!out.update.isOk()) {
+            releaseAll(reserved);
+            return out.update;
+        }
+        return settleHotStock(userId, out, reserved);
+    }
+
+    private static String rowsSql(List<int[]> rows) {
+        StringBuilder sql = new StringBuilder(HEAD);
+        if (!rows.isEmpty()) {
+            sql.append(" INSERT INTO @req (product_id, val, absolute, hot) VALUES ");
+            for (int i = 0; i < rows.size(); i++) sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+            sql.append(';');
+        }
+        return sql.append(' ').append(BODY).toString();
+    }
+
+    private static List<Integer> rowParams(int userId, List<int[]> rows) {
+        List<Integer> params = new ArrayList<>();
+        params.add(userId);
+        for (int[] row : rows) for (int v : row) params.add(v);
+        return params;
+    }
+
+    /**
+     * Run one batch. Result sets: status, then (on success) changed lines and cart totals.
+     */
+    private Outcome execute(String sql, List<Integer> params) throws SQLException {
+        Outcome out = new Outcome();
+        List<CartItem> lines = new ArrayList<>();
+        Map<Integer, Integer> stocks = new LinkedHashMap<>();
+
+        try (Connection conn = DBUtils.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            int i = 1;
+            for (Integer p : params) ps.setInt(i++, p);
+
+            int index = 0;
+            boolean isResultSet = ps.execute();
+            while (isResultSet || ps.getUpdateCount() != -1) {
+                if (isResultSet) {
+                    try (ResultSet rs = ps.getResultSet()) {
+                        if (index == 0) {
+                            rs.next();
+                            if ("short".equals(rs.getString("result"))) {
+                                out.update = shortOf(rs.getInt("product_id"));
+                                return out;
+                            }
+                            out.update = new CartUpdate(true, null);
+                        } else if (index == 1) {
+                            while (rs.next()) {
+                                int pid = rs.getInt("product_id");
+                                int newQty = rs.getInt("new_qty");
+                                lines.add(new CartItem(pid, rs.getString("product_name"), rs.getDouble("price"), null, newQty));
+                                if (rs.getBoolean("hot")) {
+                                    out.hotDiffs.put(pid, newQty - rs.getInt("old_qty"));
+                                } else {
+                                    int stock = rs.getInt("stock");
+                                    if (!rs.wasNull()) stocks.put(pid, stock);
+                                }
+                            }
+                        } else if (index == 2 && rs.next()) {
+                            out.update.setItemCount(rs.getInt("item_count"));
+                            out.update.setTotalQty(rs.getInt("total_qty"));
+                            out.update.setTotalAmount(rs.getDouble("total_amount"));
+                        }
+                    }
+                    index++;
+                }
+                isResultSet = ps.getMoreResults();
+            }
+        }
+
+        if (out.update == null) throw new SQLException("Cart update returned no status");
+        out.update.setLines(lines);
+        out.update.setUpdatedStocks(stocks);
+        for (Map.Entry<Integer, Integer> e : stocks.entrySet()) cache.updateStock(e.getKey(), e.getValue());
+        return out;
+    }
+
+    /**
+     * Move hot-product stock for the lines the batch changed. Decreases are released; an
+     * increase from setQuantity is reserved now, and if the engine cannot cover it the line
+     * is set back to its previous quantity.
+     */
+    private CartUpdate settleHotStock(int userId, Outcome out, Map<Integer, Integer> reserved) throws SQLException {
+        CartUpdate update = out.update;
+        for (Map.Entry<Integer, Integer> e : out.hotDiffs.entrySet()) {
+            int pid = e.getKey();
+            int diff = e.getValue();
+            int stock;
+            if (reserved.containsKey(pid)) {
+                stock = hotStock.visibleStock(pid);
+            } else if (diff < 0) {
+                stock = hotStock.release(pid, -diff);
+            } else {
+                stock = hotStock.reserve(pid, diff);
+                if (stock < 0) {
+                    List<int[]> undo = new ArrayList<>();
+                    undo.add(new int[]{pid, -diff, 0, 1});
+                    execute(rowsSql(undo), rowParams(userId, undo));
+                    logger.info("Hot stock short for productId=" + pid + ", cart line of user " + userId + " reverted");
+                    return shortOf(pid);
+                }
+            }
+            update.getUpdatedStocks().put(pid, stock);
+            cache.updateStock(pid, stock);
+        }
+        return update;
+    }
+
+    private void releaseAll(Map<Integer, Integer> reserved) {
+        for (Map.Entry<Integer, Integer> e : reserved.entrySet()) hotStock.release(e.getKey(), e.getValue());
+    }
+
+    private static CartUpdate shortOf(int productId) {
+        CartUpdate u = new CartUpdate(false, "Not enough stock");
+        u.setShortProductId(productId);
+        return u;
+    }
+
+    private static final class Outcome {
+        CartUpdate update;
+        // hot product -> new_qty - old_qty, settled through HotStockEngine
+        final Map<Integer, Integer> hotDiffs = new LinkedHashMap<>();
+    }
+}
@@ -0,0 +1,81 @@
+package dao;
+
+import model.CartItem;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Order writes of PaymentServlet's checkout, on the caller's transaction.
+ *
+ * The order row, its D_D_ORDERLOGS lines and the removal of the bought D_D_CART rows go
+ * to the server as one statement batch, with the lines as a multi-row VALUES list, so a
+ * checkout costs one round trip whatever the cart size. Carts beyond MAX_LINES lines
+ * (SQL Server's 2100 parameter limit) take one more batch per MAX_LINES lines.
+ */
+public class CheckoutDao {
+
+    // 3 parameters per line plus 2, kept under SQL Server's 2100 parameter limit
+    public static final int MAX_LINES = 500;
+
+    private static final String ORDER =
+            " INSERT INTO Ecommerce_Website.D_D_ORDER (user_id, total_amount, orderdate, status) VALUES (@user, ?, GETDATE(), 'Paid');"
+            + " SET @order = SCOPE_IDENTITY();";
+
+    private static final String LINES =
+            " INSERT INTO Ecommerce_Website.D_D_ORDERLOGS (order_id, product_id, quantity, price, total)"
+            + "  SELECT @order, product_id, quantity, price, quantity * price FROM @lines;"
+            + " DELETE c FROM Ecommerce_Website.D_D_CART c JOIN @lines l ON l.product_id = c.product_id"
+            + "  WHERE c.user_id = @user;"
+            + " SELECT @order AS order_id;";
+
+    /**
+     * Create the order for the given cart lines, write its order lines and delete those
+     * lines from the user's cart. Returns the new order id.
+     */
+    public static int placeOrder(Connection conn, int userId, double totalAmount, List<CartItem> lines) throws SQLException {
+        if (lines.isEmpty()) throw new IllegalArgumentException("No lines to order");
+        int end = Math.min(MAX_LINES, lines.size());
+        int orderId = execute(conn, userId, null, totalAmount, lines.subList(0, end));
+        for (int start = end; start < lines.size(); start += MAX_LINES) {
+            execute(conn, userId, orderId, 0, lines.subList(start, Math.min(start + MAX_LINES, lines.size())));
+        }
+        return orderId;
+    }
+
+    // orderId null creates the order first
+    private static int execute(Connection conn, int userId, Integer orderId, double totalAmount, List<CartItem> lines) throws SQLException {
+        StringBuilder sql = new StringBuilder("SET NOCOUNT ON;")
+                .append(" DECLARE @user INT = ?;")
+                .append(" DECLARE @order INT = ?;")
+                .append(" DECLARE @lines TABLE (product_id INT NOT NULL, quantity INT NOT NULL, price FLOAT NOT NULL);")
+                .append(" INSERT INTO @lines (product_id, quantity, price) VALUES ");
+        for (int i = 0; i < lines.size(); i++) sql.append(i == 0 ? "(?, ?, ?)" : ", (?, ?, ?)");
+        sql.append(';');
+        if (orderId == null) sql.append(ORDER);
+        sql.append(LINES);
+
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int i = 1;
+            ps.setInt(i++, userId);
+            if (orderId == null) ps.setNull(i++, Types.INTEGER);
+            else ps.setInt(i++, orderId);
+            for (CartItem line : lines) {
+                ps.setInt(i++, line.getProductId());
+                ps.setInt(i++, line.getQty());
+                ps.setDouble(i++, line.getPrice());
+            }
+            if (orderId == null) ps.setDouble(i, totalAmount);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getObject("order_id") == null) {
+                    throw new SQLException("Creating order failed, no ID obtained.");
+                }
+                return rs.getInt("order_id");
+            }
+        }
+    }
+}
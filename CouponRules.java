@@ -0,0 +1,367 @@
+package dao;
+
+import utils.DBUtils;
+import utils.LoggerUtil;
+import utils.TtlCache;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory copy of D_D_COUPON for CouponDao, so validating a coupon does not query the DB.
+ *
+ * Rules are loaded as one immutable snapshot and reloaded after coupon.rules.ttlMs
+ * (coupons are maintained directly in the DB, there is no admin screen to hook into).
+ * An unknown code triggers an early reload, at most once per coupon.rules.missReloadMs.
+ * Whether D_D_COUPON has the new_user_only column is probed once, on the first load.
+ *
+ * The only per-validation DB access left is the "has this user ordered before" check
+ * for new-user-only coupons, and that answer is cached per user.
+ *
+ * Coupons with a usage_limit are also metered here: a checkout reserves a redemption
+ * (tryReserve) before writing its order and releases it once the transaction is over.
+ * used_count plus in-flight reservations never exceeds the limit, so concurrent
+ * checkouts are turned away in memory instead of racing for the last redemptions.
+ * CouponDao's conditional used_count update stays the authority across app instances.
+ */
+public class CouponRules {
+
+    private static final Logger logger = LoggerUtil.getLogger(CouponRules.class);
+
+    private static final long TTL_MILLIS = Long.getLong("coupon.rules.ttlMs", 60_000L);
+    private static final long MISS_RELOAD_MILLIS = Long.getLong("coupon.rules.missReloadMs", 5_000L);
+    private static final long HAS_ORDERED_TTL_MILLIS = Long.getLong("coupon.hasOrdered.ttlMs", 10 * 60_000L);
+    private static final int HAS_ORDERED_MAX_USERS = Integer.getInteger("coupon.hasOrdered.maxUsers", 10000);
+
+    // used when the DB predates the new_user_only column
+    private static final Set<String> FALLBACK_NEW_USER_ONLY_CODES = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("WELCOME10", "NEWUSER5"))
+    );
+
+    private static final CouponRules INSTANCE = new CouponRules();
+
+    private volatile Snapshot snapshot;
+    private volatile Boolean newUserOnlyColumn;
+    private final ReentrantLock loadLock = new ReentrantLock();
+
+    // latest used_count seen per coupon since the last load; never lower than the truth
+    private final Map<Integer, Integer> usedCounts = new ConcurrentHashMap<>();
+    // redemptions reserved by checkouts that have not committed or rolled back yet
+    private final Map<Integer, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    private final TtlCache<Integer, Boolean> hasOrdered =
+            new TtlCache<>("hasOrdered", HAS_ORDERED_MAX_USERS, HAS_ORDERED_TTL_MILLIS);
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong missReloads = new AtomicLong();
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong limitRejections = new AtomicLong();
+
+    private CouponRules() {
+    }
+
+    public static CouponRules getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Load the rules now (startup). Failures are logged; the next lookup retries.
+     */
+    public void preload() {
+        try (Connection conn = DBUtils.getConnection()) {
+            reload(conn);
+        } catch (SQLException e) {
+            logger.warn("Could not preload coupon rules, will load on first use", e);
+        }
+    }
+
+    /**
+     * Rule for a code (case-insensitive), or null when there is no such coupon.
+     * conn is only used if the snapshot has to be (re)loaded.
+     */
+    public Rule find(Connection conn, String code) throws SQLException {
+        String key = code.trim().toLowerCase(Locale.ROOT);
+        Snapshot s = current(conn);
+        Rule rule = s.byCode.get(key);
+        if (rule == null && System.currentTimeMillis() - s.loadedAt >= MISS_RELOAD_MILLIS && loadLock.tryLock()) {
+            try {
+                missReloads.incrementAndGet();
+                rule = reload(conn).byCode.get(key);
+            } finally {
+                loadLock.unlock();
+            }
+        }
+        return rule;
+    }
+
+    /**
+     * Active rules in coupon_id order.
+     */
+    public List<Rule> active(Connection conn) throws SQLException {
+        return current(conn).active;
+    }
+
+    public int usedCount(Rule rule) {
+        Integer seen = usedCounts.get(rule.getCouponId());
+        return seen == null ? rule.getUsedCount() : Math.max(seen, rule.getUsedCount());
+    }
+
+    /**
+     * Record a used_count read back from the DB after a redemption.
+     */
+    public void noteUsedCount(int couponId, int usedCount) {
+        usedCounts.merge(couponId, usedCount, Math::max);
+    }
+
+    /**
+     * Reserve one redemption of the coupon for a checkout in progress. False when the
+     * usage limit is already taken up by committed and in-flight redemptions. Every
+     * successful call must be paired with release(couponId), commit or not.
+     */
+    public boolean tryReserve(Rule rule) {
+        Integer limit = rule.getUsageLimit();
+        AtomicInteger held = inFlight.computeIfAbsent(rule.getCouponId(), id -> new AtomicInteger());
+        while (true) {
+            int h = held.get();
+            if (limit != null && usedCount(rule) + h >= limit) {
+                limitRejections.incrementAndGet();
+                return false;
+            }
+            if (held.compareAndSet(h, h + 1)) {
+                reserved.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * End a reservation. After a commit, call noteUsedCount first so the redemption
+     * is never counted as neither used nor in flight.
+     */
+    public void release(int couponId) {
+        AtomicInteger held = inFlight.get(couponId);
+        if (held != null) held.updateAndGet(h -> h > 0 ? h - 1 : 0);
+    }
+
+    /**
+     * Whether the user has placed an order before. conn may be null, a connection is then
+     * borrowed only on a cache miss.
+     */
+    public boolean hasOrdered(Connection conn, int userId) throws SQLException {
+        Boolean cached = hasOrdered.get(userId);
+        if (cached != null) return cached;
+        boolean ordered;
+        if (conn != null) {
+            ordered = queryHasOrdered(conn, userId);
+        } else {
+            try (Connection c = DBUtils.getConnection()) {
+                ordered = queryHasOrdered(c, userId);
+            }
+        }
+        hasOrdered.put(userId, ordered);
+        return ordered;
+    }
+
+    /**
+     * Called once an order for the user has been committed.
+     */
+    public void markOrdered(int userId) {
+        hasOrdered.put(userId, Boolean.TRUE);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        Snapshot s = snapshot;
+        m.put("rules", s == null ? 0 : s.byCode.size());
+        m.put("active", s == null ? 0 : s.active.size());
+        m.put("ageMillis", s == null ? -1 : System.currentTimeMillis() - s.loadedAt);
+        m.put("newUserOnlyColumn", newUserOnlyColumn);
+        m.put("loads", loads.get());
+        m.put("missReloads", missReloads.get());
+        m.put("reserved", reserved.get());
+        m.put("limitRejections", limitRejections.get());
+        int held = 0;
+        for (AtomicInteger h : inFlight.values()) held += h.get();
+        m.put("inFlight", held);
+        m.put("hasOrdered", hasOrdered.stats());
+        return m;
+    }
+
+    private Snapshot current(Connection conn) throws SQLException {
+        Snapshot s = snapshot;
+        if (s != null && System.currentTimeMillis() - s.loadedAt < TTL_MILLIS) return s;
+        if (s == null) {
+            loadLock.lock();
+        } else if (!loadLock.tryLock()) {
+            // another thread is reloading; the expired snapshot is fine meanwhile
+            return s;
+        }
+        try {
+            s = snapshot;
+            if (s != null && System.currentTimeMillis() - s.loadedAt < TTL_MILLIS) return s;
+            return reload(conn);
+        } finally {
+            loadLock.unlock();
+        }
+    }
+
+    private Snapshot reload(Connection conn) throws SQLException {
+        if (conn == null) {
+            try (Connection c = DBUtils.getConnection()) {
+                return reload(c);
+            }
+        }
+        if (newUserOnlyColumn == null) newUserOnlyColumn = probeNewUserOnlyColumn(conn);
+        boolean hasColumn = newUserOnlyColumn;
+
+        String sql = "SELECT coupon_id, code, type, value, min_amount, max_discount, expires_at, usage_limit, used_count, active"
+                + (hasColumn ? ", new_user_only" : "")
+                + " FROM Ecommerce_Website.D_D_COUPON ORDER BY coupon_id";
+        Map<String, Rule> byCode = new HashMap<>();
+        List<Rule> active = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String code = rs.getString("code");
+                if (code == null) continue;
+                Timestamp expiresAt = rs.getTimestamp("expires_at");
+                boolean newUserOnly = hasColumn
+                        ? rs.getBoolean("new_user_only")
+                        : FALLBACK_NEW_USER_ONLY_CODES.contains(code.trim().toUpperCase());
+                Rule rule = new Rule(
+                        rs.getInt("coupon_id"),
+                        code,
+                        rs.getString("type"),
+                        rs.getDouble("value"),
+                        rs.getDouble("min_amount"),
+                        rs.getObject("max_discount") != null ? rs.getDouble("max_discount") : null,
+                        expiresAt == null ? null : expiresAt.getTime(),
+                        rs.getObject("usage_limit") != null ? rs.getInt("usage_limit") : null,
+                        rs.getInt("used_count"),
+                        rs.getBoolean("active"),
+                        newUserOnly);
+                byCode.putIfAbsent(code.trim().toLowerCase(Locale.ROOT), rule);
+                if (rule.isActive()) active.add(rule);
+            }
+        }
+        Snapshot s = new Snapshot(Collections.unmodifiableMap(byCode), Collections.unmodifiableList(active));
+        snapshot = s;
+        // the fresh snapshot carries the DB's used_count
+        usedCounts.clear();
+        loads.incrementAndGet();
+        return s;
+    }
+
+    private static boolean probeNewUserOnlyColumn(Connection conn) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT 1 FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLUMN_NAME = ?")) {
+            ps.setString(1, "Ecommerce_Website");
+            ps.setString(2, "D_D_COUPON");
+            ps.setString(3, "new_user_only");
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static boolean queryHasOrdered(Connection conn, int userId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT TOP 1 1 FROM Ecommerce_Website.D_D_ORDER WHERE user_id = ?")) {
+            ps.setInt(1, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static final class Snapshot {
+        final Map<String, Rule> byCode;
+        final List<Rule> active;
+        final long loadedAt = System.currentTimeMillis();
+
+        Snapshot(Map<String, Rule> byCode, List<Rule> active) {
+            this.byCode = byCode;
+            this.active = active;
+        }
+    }
+
+    /**
+     * One D_D_COUPON row. Immutable; used_count is as of the snapshot load.
+     */
+    public static final class Rule {
+        private final int couponId;
+        private final String code;
+        private final String type;
+        private final double value;
+        private final double minAmount;
+        private final Double maxDiscount;
+        private final Long expiresAt;
+        private final Integer usageLimit;
+        private final int usedCount;
+        private final boolean active;
+        private final boolean newUserOnly;
+
+        Rule(int couponId, String code, String type, double value, double minAmount, Double maxDiscount,
+             Long expiresAt, Integer usageLimit, int usedCount, boolean active, boolean newUserOnly) {
+            this.couponId = couponId;
+            this.code = code;
+            this.type = type;
+            this.value = value;
+            this.minAmount = minAmount;
+            this.maxDiscount = maxDiscount;
+            this.expiresAt = expiresAt;
+            this.usageLimit = usageLimit;
+            this.usedCount = usedCount;
+            this.active = active;
+            this.newUserOnly = newUserOnly;
+        }
+
+        public int getCouponId() { return couponId; }
+        public String getCode() { return code; }
+        public String getType() { return type; }
+        public double getValue() { return value; }
+        public double getMinAmount() { return minAmount; }
+        public Double getMaxDiscount() { return maxDiscount; }
+        public Integer getUsageLimit() { return usageLimit; }
+        public int getUsedCount() { return usedCount; }
+        public boolean isActive() { return active; }
+        public boolean isNewUserOnly() { return newUserOnly; }
+
+        public boolean isPercent() {
+            return "PERCENT".equalsIgnoreCase(type);
+        }
+
+        public boolean isExpired(long now) {
+            return expiresAt != null && expiresAt < now;
+        }
+
+        public double discountFor(double amount) {
+            double discount = isPercent() ? (value / 100.0) * amount : value;
+            if (maxDiscount != null && discount > maxDiscount) discount = maxDiscount;
+            return discount;
+        }
+
+        public String label() {
+            return isPercent() ? (value + "% off") : ("₹" + value + " off");
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package dao;
+
+import utils.DBUtils;
+import utils.LoggerUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory stock for designated hot products (opt-in via -Dinventory.hotProducts=12,34).
+ *
+ * The engine leases stock from M_S_DATAS in chunks: a lease moves units out of
+ * M_S_DATAS.stock into striped in-memory counters and records the amount held in
+ * D_D_HOT_STOCK, in one transaction. Reservations and releases then only touch the
+ * counters. A periodic flush returns surplus and tops leases up for all hot products
+ * in one batched transaction.
+ *
+ * Because leased units are no longer in M_S_DATAS, the SQL stock paths stay safe for
+ * hot products. D_D_HOT_STOCK also counts the units reserved and released against the
+ * lease: reserved is persisted a chunk ahead before a reservation is acknowledged, so it
+ * never falls behind, and released is written by the flush, so it never runs ahead. After
+ * a crash, startup returns held - (reserved - released) to M_S_DATAS (see reconcile):
+ * never a unit that was handed out, at most about a chunk per product short. A clean
+ * shutdown returns everything.
+ */
+public class HotStockEngine {
+
+    private static final Logger logger = LoggerUtil.getLogger(HotStockEngine.class);
+
+    private static final int STRIPES = Math.max(1, Integer.getInteger("inventory.hot.stripes", 8));
+    private static final int LEASE_CHUNK = Math.max(1, Integer.getInteger("inventory.hot.leaseChunk", 50));
+    private static final long FLUSH_MILLIS = Long.getLong("inventory.hot.flushMs", 500L);
+    private static final int MAX_HOT_PRODUCTS = 500;
+
+    private static final HotStockEngine INSTANCE = new HotStockEngine();
+
+    private final Map<Integer, Sku> skus = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+
+    private final AtomicLong reservations = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong leaseClaims = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+
+    private HotStockEngine() {
+    }
+
+    public static HotStockEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Product ids listed in the inventory.hotProducts system property.
+     */
+    public static List<Integer> configuredProducts() {
+        List<Integer> ids = new ArrayList<>();
+        String prop = System.getProperty("inventory.hotProducts", "").trim();
+        if (prop.isEmpty()) return ids;
+        for (String part : prop.split(",")) {
+            try {
+                ids.add(Integer.parseInt(part.trim()));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring invalid hot product id: " + part);
+            }
+        }
+        return ids;
+    }
+
+    public boolean isHot(int productId) {
+        return skus.containsKey(productId);
+    }
+
+    public Set<Integer> hotProducts() {
+        return Collections.unmodifiableSet(skus.keySet());
+    }
+
+    /**
+     * Reconcile leases left by the previous run, register the hot products and start flushing.
+     * Must run before traffic, i.e. from AppContextListener.
+     */
+    public synchronized void start(Collection<Integer> productIds) {
+        if (productIds.isEmpty() || flusher != null) return;
+        if (productIds.size() > MAX_HOT_PRODUCTS) {
+            logger.warn("Too many hot products (" + productIds.size() + "), only the first " + MAX_HOT_PRODUCTS + " are used");
+        }
+        try (Connection conn = DBUtils.getConnection()) {
+            ensureTable(conn);
+            reconcile(conn);
+            int n = 0;
+            for (Integer pid : productIds) {
+                if (n++ >= MAX_HOT_PRODUCTS) break;
+                register(conn, pid);
+            }
+        } catch (SQLException e) {
+            logger.error("Hot stock engine not started", e);
+            skus.clear();
+            return;
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hot-stock-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        logger.info("Hot stock engine started for products " + skus.keySet());
+    }
+
+    /**
+     * Stop flushing and hand every leased unit back to M_S_DATAS.
+     */
+    public synchronized void stop() {
+        if (flusher == null) return;
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flusher = null;
+
+        List<int[]> moves = new ArrayList<>();
+        for (Sku sku : skus.values()) {
+            int drained = sku.drain(Integer.MAX_VALUE);
+            if (drained > 0) moves.add(new int[]{sku.productId, drained, drained});
+        }
+        try {
+            apply(moves, unpersistedReleases());
+            logger.info("Hot stock engine stopped, leases returned");
+        } catch (SQLException e) {
+            logger.error("Returning hot stock leases failed; they will be returned on next startup", e);
+        }
+        skus.clear();
+    }
+
+    /**
+     * Reserve qty units. Returns the stock now visible for the product, or -1 if there is not enough.
+     */
+    public int reserve(int productId, int qty) {
+        Sku sku = skus.get(productId);
+        if (sku == null) throw new IllegalStateException("Product " + productId + " is not a hot product");
+        if ((!sku.tryTake(qty) && !claimAndTake(sku, qty)) || !recordReservation(sku, qty)) {
+            rejected.incrementAndGet();
+            return -1;
+        }
+        reservations.incrementAndGet();
+        return sku.visible();
+    }
+
+    // local lease exhausted: claim more from the DB, one claimer per product. Once the DB is
+    // known to be empty only the periodic flush looks again, so sold-out products cost no round trips.
+    private boolean claimAndTake(Sku sku, int qty) {
+        synchronized (sku) {
+            if (sku.tryTake(qty)) return true;
+            if (sku.dbStock <= 0) return false;
+            try {
+                List<int[]> claim = new ArrayList<>();
+                claim.add(new int[]{sku.productId, -Math.max(LEASE_CHUNK, qty), 0});
+                leaseClaims.incrementAndGet();
+                apply(claim);
+            } catch (SQLException e) {
+                logger.error("Lease claim failed for productId=" + sku.productId, e);
+            }
+            return sku.tryTake(qty);
+        }
+    }
+
+    /**
+     * Count taken units as reserved. The persisted count has to cover them before the
+     * reservation is acknowledged, so when it does not it is raised to a chunk ahead: one
+     * write per LEASE_CHUNK units reserved. If that write fails the units are put back.
+     */
+    private boolean recordReservation(Sku sku, int qty) {
+        if (sku.reservedTotal.addAndGet(qty) <= sku.reservedBound) return true;
+        synchronized (sku) {
+            long bound = sku.reservedTotal.get() + LEASE_CHUNK;
+            if (bound - LEASE_CHUNK <= sku.reservedBound) return true;
+            String sql = "UPDATE Ecommerce_Website.D_D_HOT_STOCK"
+                    + " SET reserved = CASE WHEN reserved < ? THEN ? ELSE reserved END, updatedat = SYSUTCDATETIME()"
+                    + " WHERE product_id = ?";
+            try (Connection conn = DBUtils.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setLong(1, bound);
+                ps.setLong(2, bound);
+                ps.setInt(3, sku.productId);
+                ps.executeUpdate();
+                sku.reservedBound = bound;
+                return true;
+            } catch (SQLException e) {
+                logger.error("Recording hot stock reservation failed for productId=" + sku.productId, e);
+                sku.give(qty);
+                sku.releasedTotal.addAndGet(qty);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Give qty units back. Returns the stock now visible for the product.
+     */
+    public int release(int productId, int qty) {
+        Sku sku = skus.get(productId);
+        if (sku == null) throw new IllegalStateException("Product " + productId + " is not a hot product");
+        sku.give(qty);
+        sku.releasedTotal.addAndGet(qty);
+        releases.incrementAndGet();
+        return sku.visible();
+    }
+
+    /**
+     * Stock currently visible for a hot product: M_S_DATAS.stock plus the unused lease.
+     */
+    public int visibleStock(int productId) {
+        Sku sku = skus.get(productId);
+        if (sku == null) throw new IllegalStateException("Product " + productId + " is not a hot product");
+        return sku.visible();
+    }
+
+    /**
+     * Stock to show for a product whose M_S_DATAS.stock is dbStock: the visible stock when it
+     * is a hot product (its lease is not in M_S_DATAS), otherwise dbStock itself.
+     */
+    public int overlayStock(int productId, int dbStock) {
+        Sku sku = skus.get(productId);
+        return sku == null ? dbStock : sku.visible();
+    }
+
+    /**
+     * Drop the local lease after an absolute stock change (AdminServlet updateProduct), so the
+     * admin's figure is not counted twice.
+     */
+    public void discardLease(int productId) {
+        Sku sku = skus.get(productId);
+        if (sku == null) return;
+        synchronized (sku) {
+            int drained = sku.drain(Integer.MAX_VALUE);
+            String sql = "UPDATE Ecommerce_Website.D_D_HOT_STOCK SET held = held - ?, updatedat = SYSUTCDATETIME() WHERE product_id = ?";
+            try (Connection conn = DBUtils.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, drained);
+                ps.setInt(2, productId);
+                ps.executeUpdate();
+                sku.dbStock = readStock(conn, productId);
+            } catch (SQLException e) {
+                logger.error("Discarding hot stock lease failed for productId=" + productId, e);
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("running", flusher != null);
+        m.put("leaseChunk", LEASE_CHUNK);
+        m.put("stripes", STRIPES);
+        m.put("reservations", reservations.get());
+        m.put("releases", releases.get());
+        m.put("rejected", rejected.get());
+        m.put("leaseClaims", leaseClaims.get());
+        m.put("flushes", flushes.get());
+        m.put("flushFailures", flushFailures.get());
+        Map<String, Object> products = new LinkedHashMap<>();
+        for (Sku sku : skus.values()) {
+            Map<String, Object> p = new LinkedHashMap<>();
+            p.put("leased", sku.local());
+            p.put("dbStock", sku.dbStock);
+            p.put("reserved", sku.reservedTotal.get() - sku.releasedTotal.get());
+            products.put(String.valueOf(sku.productId), p);
+        }
+        m.put("products", products);
+        return m;
+    }
+
+    /**
+     * Periodic write-behind: return surplus above two chunks, top up leases below half a chunk.
+     */
+    private void flush() {
+        List<int[]> moves = new ArrayList<>();
+        for (Sku sku : skus.values()) {
+            int local = sku.local();
+            if (local > 2 * LEASE_CHUNK) {
+                int drained = sku.drain(local - LEASE_CHUNK);
+                if (drained > 0) moves.add(new int[]{sku.productId, drained, drained});
+            } else if (local < LEASE_CHUNK / 2) {
+                moves.add(new int[]{sku.productId, -(LEASE_CHUNK - local), 0});
+            }
+        }
+        try {
+            if (!apply(moves, unpersistedReleases())) return;
+            flushes.incrementAndGet();
+        } catch (Exception e) {
+            // never let an exception cancel the scheduled flush
+            flushFailures.incrementAndGet();
+            logger.error("Hot stock flush failed", e);
+        }
+    }
+
+    private void apply(List<int[]> moves) throws SQLException {
+        apply(moves, Collections.emptyMap());
+    }
+
+    /**
+     * Move stock between M_S_DATAS and the leases in one transaction. Each move is
+     * {productId, delta, drained}: a positive delta returns drained units to the DB, a
+     * negative one claims up to -delta units (less if the DB has fewer). Claimed units
+     * are added to the counters after commit; on failure drained units go back to them.
+     * The same transaction records released counts (productId -> total released).
+     * False when there was nothing to do.
+     */
+    private boolean apply(List<int[]> moves, Map<Integer, Long> released) throws SQLException {
+        if (moves.isEmpty() && released.isEmpty()) return false;
+        Map<Integer, int[]> result = new HashMap<>();
+        try (Connection conn = DBUtils.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                if (!moves.isEmpty()) moveStock(conn, moves, result);
+                if (!released.isEmpty()) {
+                    try (PreparedStatement ps = conn.prepareStatement("UPDATE Ecommerce_Website.D_D_HOT_STOCK"
+                            + " SET released = CASE WHEN released < ? THEN ? ELSE released END, updatedat = SYSUTCDATETIME()"
+                            + " WHERE product_id = ?")) {
+                        for (Map.Entry<Integer, Long> e : released.entrySet()) {
+                            ps.setLong(1, e.getValue());
+                            ps.setLong(2, e.getValue());
+                            ps.setInt(3, e.getKey());
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                for (int[] m : moves) {
+                    Sku sku = skus.get(m[0]);
+                    if (sku != null && m[2] > 0) sku.give(m[2]);
+                }
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+
+        for (Map.Entry<Integer, Long> e : released.entrySet()) {
+            Sku sku = skus.get(e.getKey());
+            if (sku != null) sku.releasedPersisted = e.getValue();
+        }
+        for (Map.Entry<Integer, int[]> e : result.entrySet()) {
+            Sku sku = skus.get(e.getKey());
+            if (sku == null) continue;
+            int moved = e.getValue()[0];
+            if (moved < 0) sku.give(-moved);
+            sku.dbStock = e.getValue()[1];
+            ProductCache.getInstance().updateStock(sku.productId, sku.visible());
+        }
+        return true;
+    }
+
+    // products whose released count has grown since it was last written; only the flush and stop write it
+    private Map<Integer, Long> unpersistedReleases() {
+        Map<Integer, Long> released = new HashMap<>();
+        for (Sku sku : skus.values()) {
+            long total = sku.releasedTotal.get();
+            if (total > sku.releasedPersisted) released.put(sku.productId, total);
+        }
+        return released;
+    }
+
+    private static void moveStock(Connection conn, List<int[]> moves, Map<Integer, int[]> result) throws SQLException {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < moves.size(); i++) values.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        String move = "UPDATE d SET d.stock = d.stock + CASE WHEN r.delta >= 0 OR d.stock >= -r.delta THEN r.delta ELSE -d.stock END"
+                + " OUTPUT inserted.product_id, deleted.stock AS before_stock, inserted.stock AS after_stock"
+                + " FROM Ecommerce_Website.M_S_DATAS d"
+                + " JOIN (VALUES " + values + ") AS r(product_id, delta) ON r.product_id = d.product_id";
+        try (PreparedStatement ps = conn.prepareStatement(move)) {
+            int i = 1;
+            for (int[] m : moves) {
+                ps.setInt(i++, m[0]);
+                ps.setInt(i++, m[1]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    int after = rs.getInt("after_stock");
+                    result.put(rs.getInt("product_id"), new int[]{after - rs.getInt("before_stock"), after});
+                }
+            }
+        }
+
+        String held = "UPDATE Ecommerce_Website.D_D_HOT_STOCK SET held = held - ?, updatedat = SYSUTCDATETIME() WHERE product_id = ?";
+        try (PreparedStatement ps = conn.prepareStatement(held)) {
+            for (Map.Entry<Integer, int[]> e : result.entrySet()) {
+                ps.setInt(1, e.getValue()[0]);
+                ps.setInt(2, e.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    private static void ensureTable(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("IF OBJECT_ID('Ecommerce_Website.D_D_HOT_STOCK', 'U') IS NULL"
+                    + " CREATE TABLE Ecommerce_Website.D_D_HOT_STOCK ("
+                    + " product_id INT NOT NULL PRIMARY KEY,"
+                    + " held INT NOT NULL DEFAULT 0,"
+                    + " reserved BIGINT NOT NULL DEFAULT 0,"
+                    + " released BIGINT NOT NULL DEFAULT 0,"
+                    + " updatedat DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME())");
+            // tables created before the reserved / released counts
+            st.execute("IF COL_LENGTH('Ecommerce_Website.D_D_HOT_STOCK', 'reserved') IS NULL"
+                    + " ALTER TABLE Ecommerce_Website.D_D_HOT_STOCK ADD"
+                    + " reserved BIGINT NOT NULL DEFAULT 0,"
+                    + " released BIGINT NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * Settle the leases of the previous run in one transaction: the units it held but had not
+     * handed out, held - (reserved - released), go back to M_S_DATAS, and the counts restart
+     * at zero. After a clean stop that is nothing; after a crash it may be short by the
+     * reserved count's lead, which is what keeps it from crediting units that were sold.
+     */
+    private static void reconcile(Connection conn) throws SQLException {
+        String pending = " WHERE held <> 0 OR reserved <> 0 OR released <> 0";
+        conn.setAutoCommit(false);
+        try {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT product_id, held, reserved, released, held - reserved + released AS unreserved"
+                            + " FROM Ecommerce_Website.D_D_HOT_STOCK" + pending);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (rs.getLong("unreserved") <= 0) continue;
+                    logger.warn("Unreturned hot stock lease: productId=" + rs.getInt("product_id") + " held=" + rs.getInt("held")
+                            + " reserved=" + (rs.getLong("reserved") - rs.getLong("released"))
+                            + ", returning " + rs.getLong("unreserved") + " units to stock");
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE d SET d.stock = d.stock + (h.held - h.reserved + h.released)"
+                            + " FROM Ecommerce_Website.M_S_DATAS d"
+                            + " JOIN Ecommerce_Website.D_D_HOT_STOCK h ON h.product_id = d.product_id"
+                            + " WHERE h.held - h.reserved + h.released > 0")) {
+                ps.executeUpdate();
+            }
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "UPDATE Ecommerce_Website.D_D_HOT_STOCK SET held = 0, reserved = 0, released = 0, updatedat = SYSUTCDATETIME()"
+                            + pending)) {
+                ps.executeUpdate();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void register(Connection conn, int productId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "IF NOT EXISTS (SELECT 1 FROM Ecommerce_Website.D_D_HOT_STOCK WHERE product_id = ?)"
+                        + " INSERT INTO Ecommerce_Website.D_D_HOT_STOCK (product_id, held) VALUES (?, 0)")) {
+            ps.setInt(1, productId);
+            ps.setInt(2, productId);
+            ps.executeUpdate();
+        }
+        int stock = readStock(conn, productId);
+        if (stock < 0) {
+            logger.warn("Hot product " + productId + " does not exist, skipped");
+            return;
+        }
+        Sku sku = new Sku(productId);
+        sku.dbStock = stock;
+        skus.put(productId, sku);
+    }
+
+    private static int readStock(Connection conn, int productId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT stock FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?")) {
+            ps.setInt(1, productId);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt("stock") : -1;
+            }
+        }
+    }
+
+    /** Leased units of one product, spread over striped counters to avoid CAS contention. */
+    private static final class Sku {
+        final int productId;
+        final AtomicInteger[] stripes = new AtomicInteger[STRIPES];
+        // M_S_DATAS.stock as of our last move; visible stock is this plus the lease
+        volatile int dbStock;
+        // units reserved / released since startup; reservedBound and releasedPersisted are what
+        // D_D_HOT_STOCK holds (at least and at most these, respectively)
+        final AtomicLong reservedTotal = new AtomicLong();
+        final AtomicLong releasedTotal = new AtomicLong();
+        volatile long reservedBound;
+        volatile long releasedPersisted;
+
+        Sku(int productId) {
+            this.productId = productId;
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new AtomicInteger();
+        }
+
+        int home() {
+            return (int) (Thread.currentThread().getId() % stripes.length);
+        }
+
+        int local() {
+            int sum = 0;
+            for (AtomicInteger s : stripes) sum += s.get();
+            return sum;
+        }
+
+        int visible() {
+            return dbStock + local();
+        }
+
+        void give(int qty) {
+            stripes[home()].addAndGet(qty);
+        }
+
+        /**
+         * Take qty units, from the home stripe if it can cover them, otherwise gathered across
+         * stripes. All or nothing.
+         */
+        boolean tryTake(int qty) {
+            int h = home();
+            AtomicInteger own = stripes[h];
+            for (int cur = own.get(); cur >= qty; cur = own.get()) {
+                if (own.compareAndSet(cur, cur - qty)) return true;
+            }
+            int[] taken = new int[stripes.length];
+            int remaining = qty;
+            for (int i = 0; i < stripes.length && remaining > 0; i++) {
+                int idx = (h + i) % stripes.length;
+                AtomicInteger s = stripes[idx];
+                for (int cur = s.get(); cur > 0; cur = s.get()) {
+                    int t = Math.min(cur, remaining);
+                    if (s.compareAndSet(cur, cur - t)) {
+                        taken[idx] += t;
+                        remaining -= t;
+                        break;
+                    }
+                }
+            }
+            if (remaining > 0) {
+                for (int i = 0; i < taken.length; i++) if (taken[i] > 0) stripes[i].addAndGet(taken[i]);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Take up to max units out of the stripes; returns how many were taken.
+         */
+        int drain(int max) {
+            int drained = 0;
+            for (AtomicInteger s : stripes) {
+                for (int cur = s.get(); cur > 0 && drained < max; cur = s.get()) {
+                    int t = Math.min(cur, max - drained);
+                    if (s.compareAndSet(cur, cur - t)) {
+                        drained += t;
+                        break;
+                    }
+                }
+            }
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package dao;
+
+import utils.DBUtils;
+import utils.LoggerUtil;
+import utils.TtlCache;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Idempotency-Key handling for PaymentServlet's checkout, so a double-clicked "Pay" or a
+ * client retry does not place the order twice.
+ *
+ * Keys are per user. In memory, the first request with a key owns it (begin returns null)
+ * and later ones get a future of its response: still running, they wait for it; finished,
+ * they get it at once. Successful responses are kept for checkout.idempotency.ttlMs, at
+ * most checkout.idempotency.maxKeys of them.
+ *
+ * D_D_IDEMPOTENCY_KEYS covers what memory cannot (restarts, other nodes): the owner inserts
+ * the key inside the checkout transaction and stores the response before commit, so the
+ * key row exists exactly when the order does. A duplicate insert waits on the first one's
+ * row lock, and after its commit finds the stored response. Failed checkouts roll the key
+ * back and may be retried.
+ */
+public class IdempotencyStore {
+
+    private static final Logger logger = LoggerUtil.getLogger(IdempotencyStore.class);
+
+    public static final int MAX_KEY_LENGTH = 100;
+
+    private static final long TTL_MILLIS = Long.getLong("checkout.idempotency.ttlMs", 24 * 60 * 60_000L);
+    private static final int MAX_KEYS = Integer.getInteger("checkout.idempotency.maxKeys", 10000);
+    private static final long DB_PURGE_INTERVAL_MILLIS = 60 * 60_000L;
+
+    // SQL Server duplicate key errors (PRIMARY KEY, unique index)
+    private static final int DUPLICATE_KEY = 2627;
+    private static final int DUPLICATE_INDEX_KEY = 2601;
+
+    private static final IdempotencyStore INSTANCE = new IdempotencyStore();
+
+    private final Map<String, CompletableFuture<Response>> inFlight = new ConcurrentHashMap<>();
+    private final TtlCache<String, Response> completed = new TtlCache<>("idempotencyKeys", MAX_KEYS, TTL_MILLIS);
+
+    private volatile boolean tableReady;
+    private volatile long lastDbPurge;
+
+    private IdempotencyStore() {
+    }
+
+    public static IdempotencyStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Null when the caller now owns the key and must call finish; otherwise the response of
+     * the request that owns it (already complete if that one is done).
+     */
+    public CompletableFuture<Response> begin(int userId, String key) {
+        String k = userId + ":" + key;
+        Response done = completed.get(k);
+        if (done != null) return CompletableFuture.completedFuture(done);
+        CompletableFuture<Response> mine = new CompletableFuture<>();
+        CompletableFuture<Response> existing = inFlight.putIfAbsent(k, mine);
+        if (existing != null) return existing;
+        // it may have finished between the two lookups
+        done = completed.get(k);
+        if (done != null) {
+            inFlight.remove(k, mine);
+            mine.complete(done);
+            return mine;
+        }
+        return null;
+    }
+
+    /**
+     * Hand the owner's response to waiting duplicates. Only successful responses are kept
+     * for later ones; after a failure the key is free again.
+     */
+    public void finish(int userId, String key, Response response) {
+        String k = userId + ":" + key;
+        if (response.isSuccess()) completed.put(k, response);
+        CompletableFuture<Response> f = inFlight.remove(k);
+        if (f != null) f.complete(response);
+    }
+
+    /**
+     * Claim the key in the caller's transaction. Null when claimed; otherwise the response
+     * stored by the checkout that already used it. Blocks while a concurrent transaction
+     * holds the same key.
+     */
+    public Response claim(Connection conn, int userId, String key) throws SQLException {
+        ensureTable();
+        purgeIfDue();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO Ecommerce_Website.D_D_IDEMPOTENCY_KEYS (user_id, idem_key) VALUES (?, ?)")) {
+            ps.setInt(1, userId);
+            ps.setString(2, key);
+            ps.executeUpdate();
+            return null;
+        } catch (SQLException e) {
+            if (e.getErrorCode() != DUPLICATE_KEY && e.getErrorCode() != DUPLICATE_INDEX_KEY) throw e;
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT status, response FROM Ecommerce_Website.D_D_IDEMPOTENCY_KEYS WHERE user_id = ? AND idem_key = ?")) {
+            ps.setInt(1, userId);
+            ps.setString(2, key);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next() || rs.getString("response") == null) {
+                    throw new SQLException("Idempotency key " + key + " is held without a response");
+                }
+                return new Response(rs.getInt("status"), rs.getString("response"));
+            }
+        }
+    }
+
+    /**
+     * Store the response of a claimed key, in the caller's transaction before it commits.
+     */
+    public void store(Connection conn, int userId, String key, Response response) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "UPDATE Ecommerce_Website.D_D_IDEMPOTENCY_KEYS SET status = ?, response = ? WHERE user_id = ? AND idem_key = ?")) {
+            ps.setInt(1, response.getStatus());
+            ps.setString(2, response.getBody());
+            ps.setInt(3, userId);
+            ps.setString(4, key);
+            ps.executeUpdate();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>(completed.stats());
+        m.put("inFlight", inFlight.size());
+        return m;
+    }
+
+    // on its own connection: DDL inside a checkout transaction would be undone by its rollback
+    private void ensureTable() throws SQLException {
+        if (tableReady) return;
+        try (Connection conn = DBUtils.getConnection(); Statement st = conn.createStatement()) {
+            st.execute("IF OBJECT_ID('Ecommerce_Website.D_D_IDEMPOTENCY_KEYS', 'U') IS NULL"
+                    + " CREATE TABLE Ecommerce_Website.D_D_IDEMPOTENCY_KEYS ("
+                    + " user_id INT NOT NULL,"
+                    + " idem_key NVARCHAR(" + MAX_KEY_LENGTH + ") NOT NULL,"
+                    + " status INT NULL,"
+                    + " response NVARCHAR(MAX) NULL,"
+                    + " createdat DATETIME NOT NULL DEFAULT GETDATE(),"
+                    + " PRIMARY KEY (user_id, idem_key))");
+        }
+        tableReady = true;
+    }
+
+    private void purgeIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - lastDbPurge < DB_PURGE_INTERVAL_MILLIS) return;
+        lastDbPurge = now;
+        try (Connection conn = DBUtils.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
+                     "DELETE FROM Ecommerce_Website.D_D_IDEMPOTENCY_KEYS WHERE createdat < DATEADD(SECOND, -?, GETDATE())")) {
+            ps.setInt(1, (int) Math.min(Integer.MAX_VALUE, TTL_MILLIS / 1000));
+            int n = ps.executeUpdate();
+            if (n > 0) logger.info("Purged " + n + " expired idempotency keys");
+        } catch (SQLException e) {
+            logger.warn("Could not purge expired idempotency keys", e);
+        }
+        completed.purgeExpired();
+    }
+
+    /**
+     * HTTP status and JSON body of a checkout.
+     */
+    public static final class Response {
+        private final int status;
+        private final String body;
+
+        public Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public int getStatus() { return status; }
+        public String getBody() { return body; }
+
+        public boolean isSuccess() {
+            return status >= 200 && status < 300;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package dao;
+
+import utils.TtlCache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Image bytes served from the DB (product BLOBs and their size variants), so the hot images
+ * of listing and detail pages are not re-read from M_S_DATAS on every request.
+ *
+ * Bounded by total bytes (image.cache.maxMb) rather than entry count, least recently used
+ * out first. Bytes live in direct buffers, outside the Java heap, so a full cache does not
+ * add to GC work. Images bigger than image.cache.maxEntryKb are not kept. Files are not
+ * cached here; ImageServlet hands those to sendfile and the OS page cache.
+ *
+ * Products found to have no image at all are remembered for image.negativeCache.ttlMs, so
+ * requests for them do not query the DB each time.
+ *
+ * AdminServlet invalidates a product's entries when its image changes or it is deleted. That
+ * bumps the product's generation: readers take generation() before going to the DB and pass
+ * it to put / markMissing, which drop anything read before the invalidation. Entries also
+ * expire after image.cache.ttlMs, so images changed directly in the DB are picked up.
+ */
+public class ImageCache {
+
+    private static final long MAX_BYTES = Long.getLong("image.cache.maxMb", 64L) * 1024 * 1024;
+    private static final long MAX_ENTRY_BYTES = Long.getLong("image.cache.maxEntryKb", 2048L) * 1024;
+    private static final long TTL_MILLIS = Long.getLong("image.cache.ttlMs", 10 * 60_000L);
+
+    private static final ImageCache INSTANCE = new ImageCache();
+
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(256, 0.75f, true);
+    private long weight;
+
+    // product id -> generation of its last invalidation; clear() moves every product past clearedAt
+    private final Map<Integer, Long> generations = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private volatile long clearedAt;
+
+    private final TtlCache<Integer, Boolean> missing = new TtlCache<>("missingImages",
+            10000, Long.getLong("image.negativeCache.ttlMs", 30_000L));
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong stalePuts = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    private ImageCache() {
+    }
+
+    public static ImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Key of a product image; size is the variant parameter, or null for the original.
+     */
+    public static String productKey(int productId, String size) {
+        return "product:" + productId + ":" + (size == null ? "original" : size);
+    }
+
+    /**
+     * Generation of a product's image; take it before reading the image from the DB.
+     */
+    public long generation(int productId) {
+        Long g = generations.get(productId);
+        return Math.max(g == null ? 0L : g, clearedAt);
+    }
+
+    public synchronized Entry get(String key) {
+        Entry e = map.get(key);
+        if (e != null && System.currentTimeMillis() >= e.expiresAt) {
+            map.remove(key);
+            weight -= e.length();
+            expirations.incrementAndGet();
+            e = null;
+        }
+        if (e == null) misses.incrementAndGet();
+        else hits.incrementAndGet();
+        return e;
+    }
+
+    /**
+     * Cache a product image read at the given generation; dropped if the product has been
+     * invalidated since.
+     */
+    public void put(int productId, String size, long generation, byte[] data, String contentType, String etag, long lastModified) {
+        if (data == null || MAX_BYTES <= 0) return;
+        if (data.length > MAX_ENTRY_BYTES || data.length > MAX_BYTES) {
+            rejected.incrementAndGet();
+            return;
+        }
+        if (generation != generation(productId)) {
+            stalePuts.incrementAndGet();
+            return;
+        }
+        // copied outside the lock; allocating direct memory is not free
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data).flip();
+        Entry entry = new Entry(buf.asReadOnlyBuffer(), contentType, etag, lastModified,
+                System.currentTimeMillis() + TTL_MILLIS);
+        String key = productKey(productId, size);
+        synchronized (this) {
+            // invalidateProduct bumps the generation under this lock, so checking here orders the two
+            if (generation != generation(productId)) {
+                stalePuts.incrementAndGet();
+                return;
+            }
+            Entry old = map.put(key, entry);
+            if (old != null) weight -= old.length();
+            weight += entry.length();
+            Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+            while (weight > MAX_BYTES && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                weight -= eldest.length();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public boolean isMissing(int productId) {
+        return missing.get(productId) != null;
+    }
+
+    public synchronized void markMissing(int productId, long generation) {
+        if (generation == generation(productId)) missing.put(productId, Boolean.TRUE);
+    }
+
+    /**
+     * Drop the original and every size of a product's image, and any "no image" mark.
+     */
+    public synchronized void invalidateProduct(int productId) {
+        generations.put(productId, clock.incrementAndGet());
+        missing.remove(productId);
+        String prefix = "product:" + productId + ":";
+        Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                weight -= e.getValue().length();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        clearedAt = clock.incrementAndGet();
+        generations.clear();
+        missing.clear();
+        map.clear();
+        weight = 0;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        long h = hits.get();
+        long total = h + misses.get();
+        synchronized (this) {
+            m.put("entries", map.size());
+            m.put("bytes", weight);
+        }
+        m.put("maxBytes", MAX_BYTES);
+        m.put("hits", h);
+        m.put("misses", misses.get());
+        m.put("hitRate", total == 0 ? 0.0 : Math.round((double) h / total * 1000.0) / 1000.0);
+        m.put("evictions", evictions.get());
+        m.put("tooLarge", rejected.get());
+        m.put("stalePutsDropped", stalePuts.get());
+        m.put("expirations", expirations.get());
+        m.put("negative", missing.stats());
+        return m;
+    }
+
+    /**
+     * One cached image. data is read-only and shared; use duplicate() to get an own position.
+     */
+    public static final class Entry {
+        private final ByteBuffer data;
+        private final String contentType;
+        private final String etag;
+        private final long lastModified;
+        private final long expiresAt;
+
+        Entry(ByteBuffer data, String contentType, String etag, long lastModified, long expiresAt) {
+            this.data = data;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        public ByteBuffer getData() { return data.duplicate(); }
+        public String getContentType() { return contentType; }
+        public String getEtag() { return etag; }
+        public long getLastModified() { return lastModified; }
+
+        int length() {
+            return data.capacity();
+        }
+    }
+}
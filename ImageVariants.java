@@ -0,0 +1,556 @@
+package dao;
+
+import utils.DBUtils;
+import utils.LoggerUtil;
+import utils.TtlCache;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resized, recompressed copies of product images (thumb / card / detail), stored in
+ * D_D_PRODUCT_IMAGE_VARIANTS next to the original in M_S_DATAS.image.
+ *
+ * AdminServlet generates them when an image is uploaded. Products whose image predates
+ * that get theirs on the first sized request (see ImageServlet). That lazy store only
+ * inserts while the product still has no variants and its BLOB is still the one they were
+ * built from, so an upload landing while it resizes is never overwritten with the old image.
+ *
+ * Validators are computed when bytes are written, so conditional requests can be answered
+ * without reading a BLOB: each variant row carries its content hash, and
+ * D_D_PRODUCT_IMAGE_META holds the hash and length of the original M_S_DATAS.image.
+ */
+public class ImageVariants {
+
+    private static final Logger logger = LoggerUtil.getLogger(ImageVariants.class);
+
+    private static final float JPEG_QUALITY = 0.82f;
+
+    /**
+     * Variant sizes, by longest edge in pixels. Images are never upscaled.
+     */
+    public enum Size {
+        THUMB(160), CARD(480), DETAIL(1200);
+
+        private final int maxEdge;
+
+        Size(int maxEdge) {
+            this.maxEdge = maxEdge;
+        }
+
+        public int getMaxEdge() {
+            return maxEdge;
+        }
+
+        public String param() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Size for a request parameter, or null for none / "original" / anything unknown.
+         */
+        public static Size parse(String s) {
+            if (s == null) return null;
+            for (Size size : values()) {
+                if (size.param().equalsIgnoreCase(s.trim())) return size;
+            }
+            return null;
+        }
+    }
+
+    private static final ImageVariants INSTANCE = new ImageVariants();
+
+    private volatile boolean tablesReady;
+    // products whose variants are being generated on demand, so concurrent requests don't all do it
+    private final Set<Integer> generating = ConcurrentHashMap.newKeySet();
+    // products found to have no decodable BLOB, so they are not re-read on every sized request
+    private final TtlCache<Integer, Boolean> undecodable = new TtlCache<>("undecodableImages", 10000, 10 * 60_000L);
+
+    private ImageVariants() {
+    }
+
+    public static ImageVariants getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Resize an uploaded image into every Size. Empty when the bytes are not a readable image.
+     */
+    public Map<Size, Variant> generate(byte[] original) {
+        Map<Size, Variant> out = new EnumMap<>(Size.class);
+        if (original == null || original.length == 0) return out;
+        BufferedImage src;
+        try {
+            src = ImageIO.read(new ByteArrayInputStream(original));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not decode uploaded image", e);
+            return out;
+        }
+        if (src == null) return out;
+
+        boolean alpha = src.getColorModel().hasAlpha();
+        for (Size size : Size.values()) {
+            try {
+                BufferedImage scaled = scale(src, size.getMaxEdge(), alpha);
+                byte[] data = alpha ? encodePng(scaled) : encodeJpeg(scaled);
+                out.put(size, new Variant(alpha ? "image/png" : "image/jpeg", scaled.getWidth(), scaled.getHeight(),
+                        data, etagOf(data), System.currentTimeMillis()));
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not build " + size.param() + " variant", e);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Generate and store the variants of a product's uploaded image, replacing any old ones.
+     */
+    public void storeForUpload(int productId, byte[] original) {
+        // keeps on-demand generation off the product meanwhile; an upload never waits for it
+        boolean guarded = generating.add(productId);
+        try {
+            Map<Size, Variant> variants = generate(original);
+            store(productId, original, variants, false);
+            if (variants.isEmpty()) undecodable.put(productId, Boolean.TRUE);
+        } catch (SQLException e) {
+            logger.error("Storing image variants failed for product " + productId, e);
+        } finally {
+            if (guarded) generating.remove(productId);
+        }
+    }
+
+    /**
+     * Replace a product's variants and record the validator of its original, in one transaction.
+     * With onlyIfMissing nothing is written (false is returned) unless the product has no
+     * variants and M_S_DATAS.image is still original.
+     */
+    private boolean store(int productId, byte[] original, Map<Size, Variant> variants, boolean onlyIfMissing) throws SQLException {
+        undecodable.remove(productId);
+        try (Connection conn = DBUtils.getConnection()) {
+            ensureTables(conn);
+            conn.setAutoCommit(false);
+            try {
+                if (onlyIfMissing && !stillMissing(conn, productId, original)) {
+                    conn.rollback();
+                    return false;
+                }
+                if (original != null) recordOriginal(conn, productId, etagOf(original), original.length);
+                try (PreparedStatement del = conn.prepareStatement(
+                        "DELETE FROM Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS WHERE product_id = ?")) {
+                    del.setInt(1, productId);
+                    del.executeUpdate();
+                }
+                if (!variants.isEmpty()) {
+                    try (PreparedStatement ins = conn.prepareStatement(
+                            "INSERT INTO Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS"
+                                    + " (product_id, size, content_type, width, height, etag, data) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                        for (Map.Entry<Size, Variant> e : variants.entrySet()) {
+                            Variant v = e.getValue();
+                            ins.setInt(1, productId);
+                            ins.setString(2, e.getKey().param());
+                            ins.setString(3, v.getContentType());
+                            ins.setInt(4, v.getWidth());
+                            ins.setInt(5, v.getHeight());
+                            ins.setString(6, v.getEtag());
+                            ins.setBytes(7, v.getData());
+                            ins.addBatch();
+                        }
+                        ins.executeBatch();
+                    }
+                }
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    // locks the product's variant range and image row until the caller's transaction ends, so an
+    // upload's store runs entirely before or after; the hash is etagOf computed by the server
+    private static boolean stillMissing(Connection conn, int productId, byte[] original) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT CASE WHEN EXISTS (SELECT 1 FROM Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS WITH (UPDLOCK, HOLDLOCK)"
+                        + " WHERE product_id = ?) THEN 0"
+                        + " WHEN EXISTS (SELECT 1 FROM Ecommerce_Website.M_S_DATAS WITH (UPDLOCK) WHERE product_id = ?"
+                        + " AND DATALENGTH(image) = ?"
+                        + " AND LOWER(CONVERT(VARCHAR(32), SUBSTRING(HASHBYTES('SHA2_256', image), 1, 16), 2)) = ?) THEN 1"
+                        + " ELSE 0 END AS missing")) {
+            ps.setInt(1, productId);
+            ps.setInt(2, productId);
+            ps.setLong(3, original.length);
+            ps.setString(4, etagOf(original));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getInt("missing") == 1;
+            }
+        }
+    }
+
+    /**
+     * Stored variant, or null when the product has none of that size. When its etag equals
+     * clientEtag the bytes are not read and the variant comes back with null data.
+     */
+    public Variant load(int productId, Size size, String clientEtag) throws SQLException {
+        try (Connection conn = DBUtils.getConnection()) {
+            ensureTables(conn);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT content_type, width, height, etag, updatedat,"
+                            + " CASE WHEN etag = ? THEN NULL ELSE data END AS data"
+                            + " FROM Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS WHERE product_id = ? AND size = ?")) {
+                ps.setString(1, clientEtag);
+                ps.setInt(2, productId);
+                ps.setString(3, size.param());
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return null;
+                    return new Variant(rs.getString("content_type"), rs.getInt("width"), rs.getInt("height"),
+                            rs.getBytes("data"), rs.getString("etag"), rs.getTimestamp("updatedat").getTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Variant of a product whose image was uploaded before variants existed: built from the
+     * BLOB in M_S_DATAS and stored for next time. Null when there is no decodable BLOB, or
+     * another request is already building this product's variants.
+     */
+    public Variant loadOrGenerate(int productId, Size size, String clientEtag) throws SQLException {
+        Variant v = load(productId, size, clientEtag);
+        return v != null ? v : generateMissing(productId, size, null);
+    }
+
+    /**
+     * Build and store the variants of a product that has none, from its original BLOB (read
+     * here when original is null), and return the one of the given size. Null as for
+     * loadOrGenerate, and when an upload replaced the image or its variants meanwhile.
+     */
+    public Variant generateMissing(int productId, Size size, byte[] original) throws SQLException {
+        if (undecodable.get(productId) != null || !generating.add(productId)) return null;
+        try {
+            if (original == null) {
+                try (Connection conn = DBUtils.getConnection();
+                     PreparedStatement ps = conn.prepareStatement(
+                             "SELECT image FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?")) {
+                    ps.setInt(1, productId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) original = rs.getBytes("image");
+                    }
+                }
+            }
+            Map<Size, Variant> variants = generate(original);
+            if (variants.isEmpty()) {
+                undecodable.put(productId, Boolean.TRUE);
+                return null;
+            }
+            return store(productId, original, variants, true) ? variants.get(size) : null;
+        } finally {
+            generating.remove(productId);
+        }
+    }
+
+    public void delete(int productId) {
+        undecodable.remove(productId);
+        try (Connection conn = DBUtils.getConnection()) {
+            ensureTables(conn);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "DELETE FROM Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS WHERE product_id = ?;"
+                            + " DELETE FROM Ecommerce_Website.D_D_PRODUCT_IMAGE_META WHERE product_id = ?")) {
+                ps.setInt(1, productId);
+                ps.setInt(2, productId);
+                ps.executeUpdate();
+            }
+        } catch (SQLException e) {
+            logger.error("Deleting image variants failed for product " + productId, e);
+        }
+    }
+
+    /**
+     * Original image of a product with its validator, for ImageServlet. The BLOB is only read
+     * when the stored etag differs from clientEtag or is missing or stale (length mismatch,
+     * e.g. the image was changed outside AdminServlet). Null when there is no such product.
+     */
+    public Original loadOriginal(int productId, String clientEtag) throws SQLException {
+        try (Connection conn = DBUtils.getConnection()) {
+            ensureTables(conn);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT m.etag, m.updatedat, CASE WHEN m.length = DATALENGTH(d.image) THEN 1 ELSE 0 END AS current_meta,"
+                            + " CASE WHEN m.etag = ? AND m.length = DATALENGTH(d.image) THEN NULL ELSE d.image END AS image"
+                            + " FROM Ecommerce_Website.M_S_DATAS d"
+                            + " LEFT JOIN Ecommerce_Website.D_D_PRODUCT_IMAGE_META m ON m.product_id = d.product_id"
+                            + " WHERE d.product_id = ?")) {
+                ps.setString(1, clientEtag);
+                ps.setInt(2, productId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return null;
+                    return readOriginal(conn, rs, productId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Everything ImageServlet needs to serve a product's image, in one query: the primary
+     * gallery path (M_S_PRODUCT_IMAGES) if any, else the variant of the requested size, else
+     * the original BLOB. Bytes are only returned for the source that will be served, and not
+     * when clientEtag shows the client already has them. Null when there is no such product.
+     */
+    public ProductImage resolveProduct(int productId, Size size, String clientEtag) throws SQLException {
+        try (Connection conn = DBUtils.getConnection()) {
+            ensureTables(conn);
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT p.image_path,"
+                            + " v.content_type AS v_type, v.width AS v_width, v.height AS v_height, v.etag AS v_etag, v.updatedat AS v_updatedat,"
+                            + " CASE WHEN p.image_path IS NULL THEN CASE WHEN v.etag = ? THEN NULL ELSE v.data END END AS v_data,"
+                            + " m.etag, m.updatedat, CASE WHEN m.length = DATALENGTH(d.image) THEN 1 ELSE 0 END AS current_meta,"
+                            + " CASE WHEN p.image_path IS NULL AND v.product_id IS NULL THEN"
+                            + " CASE WHEN m.etag = ? AND m.length = DATALENGTH(d.image) THEN NULL ELSE d.image END END AS image"
+                            + " FROM Ecommerce_Website.M_S_DATAS d"
+                            + " OUTER APPLY (SELECT TOP 1 pi.image_path FROM Ecommerce_Website.M_S_PRODUCT_IMAGES pi"
+                            + " WHERE pi.product_id = d.product_id AND pi.is_primary = 1 AND LTRIM(RTRIM(pi.image_path)) <> ''"
+                            + " ORDER BY pi.id) p"
+                            + " LEFT JOIN Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS v ON v.product_id = d.product_id AND v.size = ?"
+                            + " LEFT JOIN Ecommerce_Website.D_D_PRODUCT_IMAGE_META m ON m.product_id = d.product_id"
+                            + " WHERE d.product_id = ?")) {
+                ps.setString(1, clientEtag);
+                ps.setString(2, clientEtag);
+                ps.setString(3, size == null ? null : size.param());
+                ps.setInt(4, productId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return null;
+                    String path = rs.getString("image_path");
+                    if (path != null) return new ProductImage(path.trim(), null, null);
+                    if (rs.getString("v_etag") != null) {
+                        return new ProductImage(null, new Variant(rs.getString("v_type"), rs.getInt("v_width"), rs.getInt("v_height"),
+                                rs.getBytes("v_data"), rs.getString("v_etag"), rs.getTimestamp("v_updatedat").getTime()), null);
+                    }
+                    Original original = readOriginal(conn, rs, productId);
+                    return new ProductImage(null, null, original.getEtag() == null ? null : original);
+                }
+            }
+        }
+    }
+
+    // etag, updatedat, current_meta and image columns of a meta-joined M_S_DATAS row
+    private static Original readOriginal(Connection conn, ResultSet rs, int productId) throws SQLException {
+        byte[] data = rs.getBytes("image");
+        if (rs.getInt("current_meta") == 1) {
+            return new Original(data, rs.getString("etag"), rs.getTimestamp("updatedat").getTime());
+        }
+        if (data == null) return new Original(null, null, 0L);
+        // written before validators were recorded (or behind our back): record them now
+        String etag = etagOf(data);
+        recordOriginal(conn, productId, etag, data.length);
+        return new Original(data, etag, System.currentTimeMillis());
+    }
+
+    private static void recordOriginal(Connection conn, int productId, String etag, long length) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "MERGE Ecommerce_Website.D_D_PRODUCT_IMAGE_META AS m"
+                        + " USING (SELECT ? AS product_id, ? AS etag, ? AS length) AS s ON m.product_id = s.product_id"
+                        + " WHEN MATCHED THEN UPDATE SET etag = s.etag, length = s.length, updatedat = GETDATE()"
+                        + " WHEN NOT MATCHED THEN INSERT (product_id, etag, length) VALUES (s.product_id, s.etag, s.length);")) {
+            ps.setInt(1, productId);
+            ps.setString(2, etag);
+            ps.setLong(3, length);
+            ps.executeUpdate();
+        }
+    }
+
+    private void ensureTables(Connection conn) throws SQLException {
+        if (tablesReady) return;
+        try (Statement st = conn.createStatement()) {
+            st.execute("IF OBJECT_ID('Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS', 'U') IS NULL"
+                    + " CREATE TABLE Ecommerce_Website.D_D_PRODUCT_IMAGE_VARIANTS ("
+                    + " product_id INT NOT NULL,"
+                    + " size VARCHAR(16) NOT NULL,"
+                    + " content_type VARCHAR(64) NOT NULL,"
+                    + " width INT NOT NULL,"
+                    + " height INT NOT NULL,"
+                    + " etag VARCHAR(64) NOT NULL,"
+                    + " data VARBINARY(MAX) NOT NULL,"
+                    + " updatedat DATETIME NOT NULL DEFAULT GETDATE(),"
+                    + " PRIMARY KEY (product_id, size))");
+            st.execute("IF OBJECT_ID('Ecommerce_Website.D_D_PRODUCT_IMAGE_META', 'U') IS NULL"
+                    + " CREATE TABLE Ecommerce_Website.D_D_PRODUCT_IMAGE_META ("
+                    + " product_id INT NOT NULL PRIMARY KEY,"
+                    + " etag VARCHAR(64) NOT NULL,"
+                    + " length BIGINT NOT NULL,"
+                    + " updatedat DATETIME NOT NULL DEFAULT GETDATE())");
+        }
+        tablesReady = true;
+    }
+
+    // halve while more than twice too large (cheap and keeps quality), then one bilinear step
+    private static BufferedImage scale(BufferedImage src, int maxEdge, boolean alpha) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        double factor = Math.min(1.0, (double) maxEdge / Math.max(w, h));
+        int tw = Math.max(1, (int) Math.round(w * factor));
+        int th = Math.max(1, (int) Math.round(h * factor));
+
+        BufferedImage img = src;
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        do {
+            if (w / 2 >= tw && h / 2 >= th) {
+                w /= 2;
+                h /= 2;
+            } else {
+                w = tw;
+                h = th;
+            }
+            BufferedImage next = new BufferedImage(w, h, type);
+            Graphics2D g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                if (!alpha) {
+                    // transparent pixels of e.g. a GIF would otherwise turn black in the JPEG
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, w, h);
+                }
+                g.drawImage(img, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+            img = next;
+        } while (w != tw || h != th);
+        return img;
+    }
+
+    private static byte[] encodeJpeg(BufferedImage img) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) throw new IOException("No JPEG writer available");
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(bos)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bos.toByteArray();
+    }
+
+    private static byte[] encodePng(BufferedImage img) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (!ImageIO.write(img, "png", bos)) throw new IOException("No PNG writer available");
+        return bos.toByteArray();
+    }
+
+    /**
+     * Content-hash validator for image bytes.
+     */
+    public static String etagOf(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) sb.append(String.format("%02x", digest[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One encoded variant. The etag is a hash of the bytes, computed when it is generated.
+     */
+    public static final class Variant {
+        private final String contentType;
+        private final int width;
+        private final int height;
+        private final byte[] data;
+        private final String etag;
+        private final long lastModified;
+
+        public Variant(String contentType, int width, int height, byte[] data, String etag, long lastModified) {
+            this.contentType = contentType;
+            this.width = width;
+            this.height = height;
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public String getContentType() { return contentType; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public byte[] getData() { return data; }
+        public String getEtag() { return etag; }
+        public long getLastModified() { return lastModified; }
+    }
+
+    /**
+     * Source descriptor from resolveProduct: exactly one of primaryPath, variant and original
+     * is set, or none when the product has no image at all.
+     */
+    public static final class ProductImage {
+        private final String primaryPath;
+        private final Variant variant;
+        private final Original original;
+
+        ProductImage(String primaryPath, Variant variant, Original original) {
+            this.primaryPath = primaryPath;
+            this.variant = variant;
+            this.original = original;
+        }
+
+        public String getPrimaryPath() { return primaryPath; }
+        public Variant getVariant() { return variant; }
+        public Original getOriginal() { return original; }
+
+        public boolean isEmpty() {
+            return primaryPath == null && variant == null && original == null;
+        }
+    }
+
+    /**
+     * M_S_DATAS.image of a product. data is null when the image is absent, or was not read
+     * because the client's etag matched.
+     */
+    public static final class Original {
+        private final byte[] data;
+        private final String etag;
+        private final long lastModified;
+
+        Original(byte[] data, String etag, long lastModified) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public byte[] getData() { return data; }
+        public String getEtag() { return etag; }
+        public long getLastModified() { return lastModified; }
+    }
+}
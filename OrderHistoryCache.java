@@ -0,0 +1,91 @@
+package dao;
+
+import model.OrderHistoryPage;
+import model.OrderItem;
+import utils.TtlCache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user order history pages and expanded order lines for OrderHistoryServlet, so paging
+ * back and forth or re-opening an order does not hit D_D_ORDER / D_D_ORDERLOGS again.
+ *
+ * PaymentServlet invalidates a user after committing an order. Entries are also dropped after
+ * order.history.cache.idleMs without access and least recently used first beyond
+ * order.history.cache.maxUsers; a user keeps at most MAX_ENTRIES_PER_USER pages and orders.
+ */
+public class OrderHistoryCache {
+
+    private static final long IDLE_MILLIS = Long.getLong("order.history.cache.idleMs", 10 * 60_000L);
+    private static final int MAX_USERS = Integer.getInteger("order.history.cache.maxUsers", 5000);
+    private static final int MAX_ENTRIES_PER_USER = 64;
+
+    private static final OrderHistoryCache INSTANCE = new OrderHistoryCache();
+
+    private final TtlCache<Integer, UserHistory> users = new TtlCache<>("orderHistory", MAX_USERS, IDLE_MILLIS, true);
+
+    private OrderHistoryCache() {
+    }
+
+    public static OrderHistoryCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A page of the user's order summaries, loading it through OrderHistoryDao on a miss.
+     */
+    public OrderHistoryPage getPage(int userId, int limit, String after, boolean includeTotal, OrderHistoryDao dao) throws SQLException {
+        UserHistory h = holder(userId);
+        String key = limit + ":" + (after == null ? "" : after) + ":" + includeTotal;
+        OrderHistoryPage page = h.pages.get(key);
+        if (page != null) return page;
+        page = dao.getPage(userId, limit, after, includeTotal);
+        page.setItems(Collections.unmodifiableList(page.getItems()));
+        if (h.pages.size() < MAX_ENTRIES_PER_USER) h.pages.put(key, page);
+        return page;
+    }
+
+    /**
+     * Lines of one of the user's orders (null when there is no such order). Placed orders do
+     * not change, so these only go with the user's entry.
+     */
+    public List<OrderItem> getItems(int userId, int orderId, OrderHistoryDao dao) throws SQLException {
+        UserHistory h = holder(userId);
+        List<OrderItem> items = h.items.get(orderId);
+        if (items != null) return items;
+        items = dao.getItems(userId, orderId);
+        if (items == null) return null;
+        items = Collections.unmodifiableList(new ArrayList<>(items));
+        if (h.items.size() < MAX_ENTRIES_PER_USER) h.items.put(orderId, items);
+        return items;
+    }
+
+    public void invalidate(int userId) {
+        users.remove(userId);
+    }
+
+    public Map<String, Object> stats() {
+        return users.stats();
+    }
+
+    // the holder is taken before the DB read: a load racing with invalidate fills a holder that
+    // is no longer in the cache, so it cannot bring back a page from before the new order
+    private UserHistory holder(int userId) {
+        UserHistory h = users.get(userId);
+        if (h == null) {
+            h = new UserHistory();
+            users.put(userId, h);
+        }
+        return h;
+    }
+
+    private static final class UserHistory {
+        final Map<String, OrderHistoryPage> pages = new ConcurrentHashMap<>();
+        final Map<Integer, List<OrderItem>> items = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,125 @@
+package dao;
+
+import model.OrderHistoryPage;
+import model.OrderItem;
+import model.OrderSummary;
+import utils.DBUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Read model of a user's order history for OrderHistoryServlet: keyset-paged order summaries
+ * (no lines, just their count), and the lines of one order when it is expanded.
+ *
+ * Pages are ordered newest first by order_id, which follows orderdate since both are set at
+ * insert; the cursor is the last order_id of the previous page.
+ */
+public class OrderHistoryDao {
+
+    private static final String CURSOR_PREFIX = "order:";
+
+    /**
+     * One page of the user's orders; "after" is the nextCursor of the previous page (null for
+     * the first). The total count is an extra COUNT query, so it is only run when includeTotal is set.
+     * Throws IllegalArgumentException for a malformed cursor.
+     */
+    public OrderHistoryPage getPage(int userId, int limit, String after, boolean includeTotal) throws SQLException {
+        Integer afterId = decodeCursor(after);
+        String sql = "SELECT TOP (?) o.order_id, o.orderdate, o.total_amount, o.status,"
+                + " (SELECT COUNT(1) FROM Ecommerce_Website.D_D_ORDERLOGS ol WHERE ol.order_id = o.order_id) AS item_count"
+                + " FROM Ecommerce_Website.D_D_ORDER o WHERE o.user_id = ?"
+                + (afterId != null ? " AND o.order_id < ?" : "")
+                + " ORDER BY o.order_id DESC";
+
+        List<OrderSummary> items = new ArrayList<>(limit + 1);
+        Integer total = null;
+        try (Connection conn = DBUtils.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, limit + 1); // one extra row tells us whether there is a next page
+                ps.setInt(2, userId);
+                if (afterId != null) ps.setInt(3, afterId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        items.add(new OrderSummary(rs.getInt("order_id"), rs.getTimestamp("orderdate"),
+                                rs.getDouble("total_amount"), rs.getString("status"), rs.getInt("item_count")));
+                    }
+                }
+            }
+            if (includeTotal) {
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "SELECT COUNT(1) AS cnt FROM Ecommerce_Website.D_D_ORDER WHERE user_id = ?")) {
+                    ps.setInt(1, userId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) total = rs.getInt("cnt");
+                    }
+                }
+            }
+        }
+
+        String next = null;
+        if (items.size() > limit) {
+            items.remove(items.size() - 1);
+            next = encodeCursor(items.get(items.size() - 1).getOrderId());
+        }
+        return new OrderHistoryPage(items, next, total);
+    }
+
+    /**
+     * Lines of one of the user's orders, or null when the user has no such order.
+     */
+    public List<OrderItem> getItems(int userId, int orderId) throws SQLException {
+        String sql = "SELECT o.order_id, ol.id, ol.product_id, p.product_name, ol.quantity, ol.price, ol.total"
+                + " FROM Ecommerce_Website.D_D_ORDER o"
+                + " LEFT JOIN Ecommerce_Website.D_D_ORDERLOGS ol ON ol.order_id = o.order_id"
+                + " LEFT JOIN Ecommerce_Website.M_S_DATAS p ON p.product_id = ol.product_id"
+                + " WHERE o.order_id = ? AND o.user_id = ?"
+                + " ORDER BY ol.id";
+        try (Connection conn = DBUtils.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, orderId);
+            ps.setInt(2, userId);
+            try (ResultSet rs = ps.executeQuery()) {
+                List<OrderItem> items = null;
+                while (rs.next()) {
+                    if (items == null) items = new ArrayList<>();
+                    // an order without lines still comes back as one row, with NULL line columns
+                    if (rs.getObject("id") == null) continue;
+                    OrderItem item = new OrderItem();
+                    item.setOrderLogId(rs.getInt("id"));
+                    item.setOrderId(rs.getInt("order_id"));
+                    item.setProductId(rs.getInt("product_id"));
+                    item.setProductName(rs.getString("product_name"));
+                    item.setQuantity(rs.getInt("quantity"));
+                    item.setPrice(rs.getDouble("price"));
+                    item.setTotal(rs.getDouble("total"));
+                    items.add(item);
+                }
+                return items;
+            }
+        }
+    }
+
+    private static String encodeCursor(int lastOrderId) {
+        String raw = CURSOR_PREFIX + lastOrderId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Integer decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (!raw.startsWith(CURSOR_PREFIX)) throw new IllegalArgumentException("Invalid cursor");
+            return Integer.parseInt(raw.substring(CURSOR_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            // also NumberFormatException
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package dao;
+
+import model.Product;
+import utils.TtlCache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache for catalog reads in ProductDao.
+ *
+ * Holds products by id (without image bytes, those are served by ImageServlet) and
+ * per-category lists of product ids. The catalog only changes through AdminServlet,
+ * which calls the invalidate methods after each mutation; the TTL bounds staleness
+ * for anything changed outside the app.
+ *
+ * Listings keep their own hit / miss counters, so the products counters only reflect
+ * product lookups. A listing with more products than cache.products.maxEntries is not
+ * cached, as it would push its own products (and every other one) out.
+ *
+ * The stock of hot products (HotStockEngine) is taken from the engine on every read, as
+ * their leased units are not in M_S_DATAS and change without a cache update.
+ *
+ * Every invalidation bumps the generation of what it drops. Readers take generation() or
+ * listingGeneration() before querying the DB and pass it to putProduct / putListing, which
+ * drop the write if an invalidation came in between, so a read that started before an
+ * admin change cannot put the old row back.
+ */
+public class ProductCache {
+
+    private static final long TTL_MILLIS = Long.getLong("cache.products.ttlMs", 5 * 60_000L);
+    private static final int MAX_PRODUCTS = Integer.getInteger("cache.products.maxEntries", 5000);
+    private static final int MAX_INDEXES = 256;
+
+    private static final String ALL = "all";
+
+    private static final ProductCache INSTANCE = new ProductCache();
+
+    private final TtlCache<Integer, Product> products = new TtlCache<>("products", MAX_PRODUCTS, TTL_MILLIS);
+    private final TtlCache<String, List<Integer>> categoryIndex = new TtlCache<>("categoryIndex", MAX_INDEXES, TTL_MILLIS);
+
+    private final AtomicLong listingHits = new AtomicLong();
+    private final AtomicLong listingMisses = new AtomicLong();
+    private final AtomicLong listingsTooLarge = new AtomicLong();
+    private final AtomicLong stalePuts = new AtomicLong();
+
+    // generation of each product / listing key's last invalidation, from one clock; the *ClearedAt
+    // values move everything (or every listing) past a clear
+    private final Map<Integer, Long> productGenerations = new ConcurrentHashMap<>();
+    private final Map<String, Long> listingGenerations = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private volatile long productsClearedAt;
+    private volatile long listingsClearedAt;
+
+    private ProductCache() {
+    }
+
+    public static ProductCache getInstance() {
+        return INSTANCE;
+    }
+
+    public Product getProduct(int productId) {
+        Product p = products.get(productId);
+        return p == null ? null : withLiveStock(p);
+    }
+
+    /**
+     * Generation of a product; take it before reading the product from the DB.
+     */
+    public long generation(int productId) {
+        Long g = productGenerations.get(productId);
+        return Math.max(g == null ? 0L : g, productsClearedAt);
+    }
+
+    /**
+     * Generation of a category listing (null = whole catalog); take it before reading the listing.
+     */
+    public long listingGeneration(Integer categoryId) {
+        Long g = listingGenerations.get(indexKey(categoryId));
+        return Math.max(g == null ? 0L : g, listingsClearedAt);
+    }
+
+    /**
+     * Cache a product read at the given generation; dropped if it has been invalidated since.
+     */
+    public synchronized void putProduct(Product p, long generation) {
+        if (p == null) return;
+        if (generation != generation(p.getProductId())) {
+            stalePuts.incrementAndGet();
+            return;
+        }
+        products.put(p.getProductId(), copyOf(p));
+    }
+
+    /**
+     * Cached listing for a category (null = whole catalog), or null on a miss.
+     * A listing whose products have been evicted individually counts as a miss.
+     */
+    public List<Product> getListing(Integer categoryId) {
+        List<Integer> ids = categoryIndex.peek(indexKey(categoryId));
+        if (ids == null) {
+            listingMisses.incrementAndGet();
+            return null;
+        }
+        List<Product> out = new ArrayList<>(ids.size());
+        for (Integer id : ids) {
+            Product p = products.peek(id);
+            if (p == null) {
+                listingMisses.incrementAndGet();
+                return null;
+            }
+            out.add(withLiveStock(p));
+        }
+        listingHits.incrementAndGet();
+        return out;
+    }
+
+    /**
+     * Cache a listing read at the given listingGeneration. Invalidating any product also
+     * invalidates the listings that may hold it, so that one check covers its products too.
+     */
+    public synchronized void putListing(Integer categoryId, long generation, List<Product> listing) {
+        if (listing.size() > MAX_PRODUCTS) {
+            listingsTooLarge.incrementAndGet();
+            return;
+        }
+        if (generation != listingGeneration(categoryId)) {
+            stalePuts.incrementAndGet();
+            return;
+        }
+        List<Integer> ids = new ArrayList<>(listing.size());
+        for (Product p : listing) {
+            products.put(p.getProductId(), copyOf(p));
+            ids.add(p.getProductId());
+        }
+        categoryIndex.put(indexKey(categoryId), ids);
+    }
+
+    /**
+     * Keep cached stock in step with stock mutations made through ProductDao.
+     */
+    public void updateStock(int productId, int stock) {
+        products.updateIfPresent(productId, p -> {
+            Product updated = copyOf(p);
+            updated.setStock(stock);
+            return updated;
+        });
+    }
+
+    /**
+     * Drop a product and every listing that may contain it.
+     */
+    public synchronized void invalidateProduct(int productId) {
+        productGenerations.put(productId, clock.incrementAndGet());
+        Product p = products.remove(productId);
+        if (p != null) {
+            invalidateCategory(p.getCategoryId());
+        } else {
+            listingsClearedAt = clock.incrementAndGet();
+            listingGenerations.clear();
+            categoryIndex.clear();
+        }
+    }
+
+    /**
+     * Drop the listing of a category and the whole-catalog listing.
+     */
+    public synchronized void invalidateCategory(Integer categoryId) {
+        long g = clock.incrementAndGet();
+        if (categoryId != null) {
+            listingGenerations.put(indexKey(categoryId), g);
+            categoryIndex.remove(indexKey(categoryId));
+        }
+        listingGenerations.put(ALL, g);
+        categoryIndex.remove(ALL);
+    }
+
+    public synchronized void invalidateAll() {
+        long g = clock.incrementAndGet();
+        productsClearedAt = g;
+        listingsClearedAt = g;
+        productGenerations.clear();
+        listingGenerations.clear();
+        products.clear();
+        categoryIndex.clear();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("products", products.stats());
+        m.put("categoryIndex", categoryIndex.stats());
+        Map<String, Object> listings = new LinkedHashMap<>();
+        long hits = listingHits.get();
+        long total = hits + listingMisses.get();
+        listings.put("hits", hits);
+        listings.put("misses", listingMisses.get());
+        listings.put("hitRate", total == 0 ? 0.0 : Math.round(hits * 1000.0 / total) / 1000.0);
+        listings.put("tooLarge", listingsTooLarge.get());
+        m.put("stalePutsDropped", stalePuts.get());
+        m.put("listings", listings);
+        return m;
+    }
+
+    private static String indexKey(Integer categoryId) {
+        return categoryId == null ? ALL : "c:" + categoryId;
+    }
+
+    // a hot product's stock moves in HotStockEngine without going through updateStock, so it is read live
+    private static Product withLiveStock(Product p) {
+        Product c = copyOf(p);
+        c.setStock(HotStockEngine.getInstance().overlayStock(p.getProductId(), p.getStock()));
+        return c;
+    }
+
+    // callers mutate the Products they get back (e.g. setImageUrl), so never hand out the cached instance
+    private static Product copyOf(Product p) {
+        Product c = new Product(p.getProductId(), p.getCategoryId(), p.getProductName(),
+                p.getDescription(), p.getPrice(), p.getStock(), null);
+        c.setCategoryname(p.getCategoryname());
+        return c;
+    }
+}
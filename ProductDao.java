@@ -1,9 +1,13 @@
 package dao;
 
 import model.Product;
+import model.ProductPage;
 import utils.DBUtils;
 import utils.LoggerUtil;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.*;
 
@@ -12,50 +16,87 @@ import org.apache.log4j.Logger;
 public class ProductDao {
     private static final Logger logger = LoggerUtil.getLogger(ProductDao.class);
 
+    // list projection: everything except the image BLOB, which is served by ImageServlet?productId=
+    private static final String LIST_COLUMNS = "product_id, category_id, product_name, description, price, stock";
+
+    // upper bound on ranked search hits hydrated per request
+    private static final int MAX_SEARCH_RESULTS = Integer.getInteger("search.maxResults", 1000);
+
+    private final ProductCache cache = ProductCache.getInstance();
+    private final ProductSearchIndex searchIndex = ProductSearchIndex.getInstance();
+    private final HotStockEngine hotStock = HotStockEngine.getInstance();
+
     /**
      * Fetch all products
      */
     public List<Product> getAllProducts() {
+        return getListing(null);
+    }
+
+    /**
+     * Fetch products by category
+     */
+    public List<Product> getProductsByCategoryId(int categoryId) {
+        return getListing(categoryId);
+    }
+
+    /**
+     * Products of a category (null = all), served from ProductCache when possible
+     */
+    private List<Product> getListing(Integer categoryId) {
+        List<Product> cached = cache.getListing(categoryId);
+        if (cached != null) return cached;
+
+        long generation = cache.listingGeneration(categoryId);
         List<Product> products = new ArrayList<>();
-        String sql = "SELECT * FROM Ecommerce_Website.M_S_DATAS";
+        String sql = "SELECT " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS"
+                + (categoryId != null ? " WHERE category_id = ?" : "");
 
         try (Connection conn = DBUtils.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
+             PreparedStatement ps = conn.prepareStatement(sql)) {
 
-            while (rs.next()) {
-                products.add(mapProduct(rs));
+            if (categoryId != null) ps.setInt(1, categoryId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    products.add(mapProductSummary(rs));
+                }
             }
+            cache.putListing(categoryId, generation, products);
 
         } catch (SQLException e) {
-            logger.error("Error fetching all products", e);
+            logger.error("Error fetching products by categoryId=" + categoryId, e);
         }
 
         return products;
     }
 
     /**
-     * Fetch products by category
+     * Stream products of a category (null = all) straight from the cursor, bypassing the cache.
+     * Used for exports / admin listings where the result should not be held in memory.
      */
-    public List<Product> getProductsByCategoryId(int categoryId) {
-        List<Product> products = new ArrayList<>();
-        String sql = "SELECT * FROM Ecommerce_Website.M_S_DATAS WHERE category_id = ?";
+    public void forEachProduct(Integer categoryId, RowHandler<Product> handler) throws SQLException, IOException {
+        forEachProduct(categoryId, 0, handler);
+    }
+
+    /**
+     * Same as forEachProduct, limited to products with an id above afterProductId.
+     */
+    public void forEachProduct(Integer categoryId, int afterProductId, RowHandler<Product> handler) throws SQLException, IOException {
+        String sql = "SELECT " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS WHERE product_id > ?"
+                + (categoryId != null ? " AND category_id = ?" : "") + " ORDER BY product_id";
 
         try (Connection conn = DBUtils.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
-            ps.setInt(1, categoryId);
+            ps.setFetchSize(500);
+            ps.setInt(1, afterProductId);
+            if (categoryId != null) ps.setInt(2, categoryId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    products.add(mapProduct(rs));
+                    handler.handle(mapProductSummary(rs));
                 }
             }
-
-        } catch (SQLException e) {
-            logger.error("Error fetching products by categoryId=" + categoryId, e);
         }
-
-        return products;
     }
 
     /**
@@ -63,7 +104,7 @@ public class ProductDao {
      */
     public List<Product> searchProductsByName(String query) {
         List<Product> products = new ArrayList<>();
-        String sql = "SELECT * FROM Ecommerce_Website.M_S_DATAS WHERE product_name LIKE ?";
+        String sql = "SELECT " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS WHERE product_name LIKE ?";
 
         try (Connection conn = DBUtils.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -71,7 +112,7 @@ public class ProductDao {
             ps.setString(1, "%" + query + "%");
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    products.add(mapProduct(rs));
+                    products.add(mapProductSummary(rs));
                 }
             }
 
@@ -87,7 +128,7 @@ public class ProductDao {
      */
     public List<Product> searchProductsByCategoryAndName(int categoryId, String query) {
         List<Product> products = new ArrayList<>();
-        String sql = "SELECT * FROM Ecommerce_Website.M_S_DATAS WHERE category_id = ? AND product_name LIKE ?";
+        String sql = "SELECT " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS WHERE category_id = ? AND product_name LIKE ?";
 
         try (Connection conn = DBUtils.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -97,7 +138,7 @@ public class ProductDao {
 
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    products.add(mapProduct(rs));
+                    products.add(mapProductSummary(rs));
                 }
             }
 
@@ -109,11 +150,26 @@ public class ProductDao {
     }
 
     /**
-     * Filter products dynamically by category, search query, and price filter
+     * Filter products dynamically by category, search query, and price filter.
+     * Queries are answered by ProductSearchIndex (ranked by relevance unless a price filter is given);
+     * the LIKE scan below is only used until the index has been built.
      */
     public List<Product> getFilteredProducts(Integer categoryId, String query, String filter) {
+        if (query == null || query.isEmpty()) {
+            // plain category listing: serve from the cache and sort in memory
+            List<Product> listing = getListing(categoryId);
+            sortByPrice(listing, filter);
+            return listing;
+        }
+
+        if (searchIndex.isReady()) {
+            List<Product> hits = getProductsByIds(searchIndex.search(query, categoryId, MAX_SEARCH_RESULTS));
+            sortByPrice(hits, filter); // stable, so equal prices keep their relevance order
+            return hits;
+        }
+
         List<Product> products = new ArrayList<>();
-        StringBuilder sql = new StringBuilder("SELECT * FROM Ecommerce_Website.M_S_DATAS WHERE 1=1");
+        StringBuilder sql = new StringBuilder("SELECT " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS WHERE 1=1");
 
         if (categoryId != null) sql.append(" AND category_id = ?");
         if (query != null && !query.isEmpty())
@@ -141,7 +197,7 @@ public class ProductDao {
             }
 
             try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) products.add(mapProduct(rs));
+                while (rs.next()) products.add(mapProductSummary(rs));
             }
 
         } catch (SQLException e) {
@@ -151,18 +207,186 @@ public class ProductDao {
         return products;
     }
 
+    private static void sortByPrice(List<Product> products, String filter) {
+        if ("low-high".equals(filter)) {
+            products.sort(Comparator.comparingDouble(Product::getPrice));
+        } else if ("high-low".equals(filter)) {
+            products.sort(Comparator.comparingDouble(Product::getPrice).reversed());
+        }
+    }
+
+    /**
+     * Keyset-paginated listing. Orders by (price, product_id) for the low-high / high-low filters
+     * and by product_id otherwise; "after" is the nextCursor of the previous page (null for the first).
+     * The total count is an extra COUNT query, so it is only run when includeTotal is set.
+     */
+    public ProductPage getProductPage(Integer categoryId, String query, String filter,
+                                      int limit, String after, boolean includeTotal) throws SQLException {
+        String order = "low-high".equals(filter) || "high-low".equals(filter) ? filter : "id";
+        boolean desc = "high-low".equals(order);
+        String[] cursor = decodeCursor(after, order);
+
+        if (query != null && !query.isEmpty() && searchIndex.isReady()) {
+            return getSearchPage(categoryId, query, order, limit, cursor, includeTotal);
+        }
+
+        StringBuilder where = new StringBuilder(" WHERE 1=1");
+        List<Object> params = new ArrayList<>();
+        if (categoryId != null) {
+            where.append(" AND category_id = ?");
+            params.add(categoryId);
+        }
+        if (query != null && !query.isEmpty()) {
+            String like = "%" + query.toLowerCase() + "%";
+            where.append(" AND (LOWER(product_name) LIKE ? OR LOWER(description) LIKE ?)");
+            params.add(like);
+            params.add(like);
+        }
+
+        StringBuilder sql = new StringBuilder("SELECT TOP (?) " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS");
+        sql.append(where);
+        List<Object> pageParams = new ArrayList<>(params);
+        if ("id".equals(order)) {
+            if (cursor != null) {
+                sql.append(" AND product_id > ?");
+                pageParams.add(Integer.parseInt(cursor[0]));
+            }
+            sql.append(" ORDER BY product_id ASC");
+        } else {
+            String cmp = desc ? "<" : ">";
+            if (cursor != null) {
+                BigDecimal price = new BigDecimal(cursor[0]);
+                int id = Integer.parseInt(cursor[1]);
+                sql.append(" AND (price ").append(cmp).append(" ? OR (price = ? AND product_id ").append(cmp).append(" ?))");
+                pageParams.add(price);
+                pageParams.add(price);
+                pageParams.add(id);
+            }
+            sql.append(desc ? " ORDER BY price DESC, product_id DESC" : " ORDER BY price ASC, product_id ASC");
+        }
+
+        List<Product> items = new ArrayList<>(limit + 1);
+        Integer total = null;
+        try (Connection conn = DBUtils.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                ps.setInt(1, limit + 1); // one extra row tells us whether there is a next page
+                bind(ps, 2, pageParams);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) items.add(mapProductSummary(rs));
+                }
+            }
+            if (includeTotal) {
+                try (PreparedStatement ps = conn.prepareStatement("SELECT COUNT(1) AS cnt FROM Ecommerce_Website.M_S_DATAS" + where)) {
+                    bind(ps, 1, params);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) total = rs.getInt("cnt");
+                    }
+                }
+            }
+        }
+
+        return toPage(items, limit, order, total);
+    }
+
+    /**
+     * getProductPage for a search query: the index hits are hydrated and paged in memory,
+     * using the same ordering and cursor format as the SQL path.
+     */
+    private ProductPage getSearchPage(Integer categoryId, String query, String order,
+                                      int limit, String[] cursor, boolean includeTotal) {
+        List<Product> hits = getProductsByIds(searchIndex.search(query, categoryId, MAX_SEARCH_RESULTS));
+        Comparator<Product> cmp = "id".equals(order)
+                ? Comparator.comparingInt(Product::getProductId)
+                : Comparator.comparing((Product p) -> BigDecimal.valueOf(p.getPrice())).thenComparingInt(Product::getProductId);
+        if ("high-low".equals(order)) cmp = cmp.reversed();
+        hits.sort(cmp);
+
+        List<Product> items = new ArrayList<>(limit + 1);
+        for (Product p : hits) {
+            if (cursor != null && !isAfterCursor(p, cursor, order)) continue;
+            items.add(p);
+            if (items.size() > limit) break;
+        }
+        return toPage(items, limit, order, includeTotal ? hits.size() : null);
+    }
+
+    private static boolean isAfterCursor(Product p, String[] cursor, String order) {
+        if ("id".equals(order)) return p.getProductId() > Integer.parseInt(cursor[0]);
+        int c = BigDecimal.valueOf(p.getPrice()).compareTo(new BigDecimal(cursor[0]));
+        if (c == 0) c = Integer.compare(p.getProductId(), Integer.parseInt(cursor[1]));
+        return "high-low".equals(order) ? c < 0 : c > 0;
+    }
+
+    // items holds up to limit + 1 rows; the extra one only signals that there is a next page
+    private static ProductPage toPage(List<Product> items, int limit, String order, Integer total) {
+        String next = null;
+        if (items.size() > limit) {
+            items.remove(items.size() - 1);
+            next = encodeCursor(order, items.get(items.size() - 1));
+        }
+        return new ProductPage(items, next, total);
+    }
+
+    private static void bind(PreparedStatement ps, int start, List<Object> params) throws SQLException {
+        int i = start;
+        for (Object o : params) {
+            if (o instanceof Integer) ps.setInt(i++, (Integer) o);
+            else if (o instanceof BigDecimal) ps.setBigDecimal(i++, (BigDecimal) o);
+            else ps.setString(i++, String.valueOf(o));
+        }
+    }
+
+    private static String encodeCursor(String order, Product last) {
+        String raw = "id".equals(order)
+                ? order + ":" + last.getProductId()
+                : order + ":" + BigDecimal.valueOf(last.getPrice()).toPlainString() + ":" + last.getProductId();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
-     * Get product by ID
+     * Cursor values after the ordering prefix, or null for the first page.
+     * Throws IllegalArgumentException for a malformed cursor or one issued for a different ordering.
+     */
+    private static String[] decodeCursor(String cursor, String order) {
+        if (cursor == null || cursor.isEmpty()) return null;
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        String[] parts = raw.split(":");
+        int expected = "id".equals(order) ? 2 : 3;
+        if (parts.length != expected || !order.equals(parts[0])) throw new IllegalArgumentException("Invalid cursor");
+        try {
+            if (expected == 3) new BigDecimal(parts[1]);
+            Integer.parseInt(parts[expected - 1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return Arrays.copyOfRange(parts, 1, parts.length);
+    }
+
+    /**
+     * Get product by ID. Image bytes are not included; use getImagesForProduct or ImageServlet.
      */
     public Product getProductById(int productId) {
-        String sql = "SELECT * FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?";
+        Product cached = cache.getProduct(productId);
+        if (cached != null) return cached;
+
+        long generation = cache.generation(productId);
+        String sql = "SELECT " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?";
 
         try (Connection conn = DBUtils.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
 
             ps.setInt(1, productId);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return mapProduct(rs);
+                if (rs.next()) {
+                    Product p = mapProductSummary(rs);
+                    cache.putProduct(p, generation);
+                    return p;
+                }
             }
 
         } catch (SQLException e) {
@@ -173,40 +397,118 @@ public class ProductDao {
     }
 
     /**
-     * Map a ResultSet row to Product object
+     * Products for the given ids, in the same order. Cached products are used as is and the rest
+     * are loaded with one IN query per chunk; ids that no longer exist are skipped.
      */
-    private Product mapProduct(ResultSet rs) throws SQLException {
-        byte[] imageBytes = rs.getBytes("image");
+    public List<Product> getProductsByIds(List<Integer> ids) {
+        Map<Integer, Product> found = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        Map<Integer, Long> generations = new HashMap<>();
+        for (Integer id : ids) {
+            Product p = cache.getProduct(id);
+            if (p != null) {
+                found.put(id, p);
+            } else {
+                missing.add(id);
+                generations.put(id, cache.generation(id));
+            }
+        }
 
-        Product p = new Product(
-                rs.getInt("product_id"),
+        if (!missing.isEmpty()) {
+            try (Connection conn = DBUtils.getConnection()) {
+                for (List<Integer> chunk : chunks(missing)) {
+                    String sql = "SELECT " + LIST_COLUMNS + " FROM Ecommerce_Website.M_S_DATAS WHERE product_id IN ("
+                            + placeholders(chunk.size()) + ")";
+                    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                        int i = 1;
+                        for (Integer id : chunk) ps.setInt(i++, id);
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                Product p = mapProductSummary(rs);
+                                cache.putProduct(p, generations.get(p.getProductId()));
+                                found.put(p.getProductId(), p);
+                            }
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Error fetching products by ids", e);
+            }
+        }
+
+        List<Product> out = new ArrayList<>(found.size());
+        for (Integer id : ids) {
+            Product p = found.get(id);
+            if (p != null) out.add(p);
+        }
+        return out;
+    }
+
+    /**
+     * Map a LIST_COLUMNS row (no image) to Product object
+     */
+    private Product mapProductSummary(ResultSet rs) throws SQLException {
+        int productId = rs.getInt("product_id");
+        return new Product(
+                productId,
                 rs.getInt("category_id"),
                 rs.getString("product_name"),
                 rs.getString("description"),
                 rs.getDouble("price"),
-                rs.getInt("stock"),
-                imageBytes
+                hotStock.overlayStock(productId, rs.getInt("stock")),
+                null
         );
-
-        return p;
     }
 
     /**
      * Get Base64 encoded image for frontend
      */
     public String getBase64Image(int productId) {
-        Product p = getProductById(productId);
-        if (p != null && p.getImageData() != null && p.getImageData().length > 0)
-            return Base64.getEncoder().encodeToString(p.getImageData());
+        try {
+            List<String> imgs = getImagesForProduct(productId);
+            if (!imgs.isEmpty()) return imgs.get(0);
+        } catch (SQLException e) {
+            logger.error("Error fetching image for productId=" + productId, e);
+        }
         return null;
     }
 
     /**
-     * Decrement stock safely
+     * Insert a product (image bytes included) and return its generated product_id, so callers
+     * can attach data to exactly this row.
+     */
+    public int addProduct(Product p) throws SQLException {
+        String sql = "INSERT INTO Ecommerce_Website.M_S_DATAS (category_id, product_name, description, price, stock, image)"
+                + " OUTPUT inserted.product_id VALUES (?, ?, ?, ?, ?, ?)";
+        try (Connection conn = DBUtils.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, p.getCategoryId());
+            ps.setString(2, p.getProductName());
+            ps.setString(3, p.getDescription());
+            ps.setDouble(4, p.getPrice());
+            ps.setInt(5, p.getStock());
+            ps.setBytes(6, p.getImageData());
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) throw new SQLException("Creating product failed, no ID obtained.");
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * Decrement stock safely. Returns the new stock, or -1 if there was not enough.
+     * Check and decrement happen in one statement that also returns the new value.
+     * Hot products (HotStockEngine) are reserved in memory instead.
      */
     public int decrementStockAndGet(int productId, int qty) {
-        String sql = "UPDATE Ecommerce_Website.M_S_DATAS SET stock = stock - ? WHERE product_id = ? AND stock >= ?";
-        String select = "SELECT stock FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?";
+        if (hotStock.isHot(productId)) {
+            int stock = hotStock.reserve(productId, qty);
+            if (stock >= 0) cache.updateStock(productId, stock);
+            return stock;
+        }
+
+        String sql = "UPDATE Ecommerce_Website.M_S_DATAS SET stock = stock - ? OUTPUT inserted.stock"
+                + " WHERE product_id = ? AND stock >= ?";
 
         try (Connection conn = DBUtils.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -215,13 +517,11 @@ public class ProductDao {
             ps.setInt(2, productId);
             ps.setInt(3, qty);
 
-            int updated = ps.executeUpdate();
-            if (updated > 0) {
-                try (PreparedStatement ps2 = conn.prepareStatement(select)) {
-                    ps2.setInt(1, productId);
-                    try (ResultSet rs = ps2.executeQuery()) {
-                        if (rs.next()) return rs.getInt("stock");
-                    }
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    int stock = rs.getInt("stock");
+                    cache.updateStock(productId, stock);
+                    return stock;
                 }
             }
 
@@ -233,11 +533,16 @@ public class ProductDao {
     }
 
     /**
-     * Increment stock
+     * Increment stock. Returns the new stock, or -1 if the product does not exist.
      */
     public int incrementStockAndGet(int productId, int qty) {
-        String sql = "UPDATE Ecommerce_Website.M_S_DATAS SET stock = stock + ? WHERE product_id = ?";
-        String select = "SELECT stock FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?";
+        if (hotStock.isHot(productId)) {
+            int stock = hotStock.release(productId, qty);
+            cache.updateStock(productId, stock);
+            return stock;
+        }
+
+        String sql = "UPDATE Ecommerce_Website.M_S_DATAS SET stock = stock + ? OUTPUT inserted.stock WHERE product_id = ?";
 
         try (Connection conn = DBUtils.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -245,13 +550,11 @@ public class ProductDao {
             ps.setInt(1, qty);
             ps.setInt(2, productId);
 
-            int updated = ps.executeUpdate();
-            if (updated > 0) {
-                try (PreparedStatement ps2 = conn.prepareStatement(select)) {
-                    ps2.setInt(1, productId);
-                    try (ResultSet rs = ps2.executeQuery()) {
-                        if (rs.next()) return rs.getInt("stock");
-                    }
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    int stock = rs.getInt("stock");
+                    cache.updateStock(productId, stock);
+                    return stock;
                 }
             }
 
@@ -263,7 +566,133 @@ public class ProductDao {
     }
 
     /**
-     * Get current stock
+     * Reserve stock for several products at once (productId -> qty), all or nothing.
+     * Returns the new stock per product, or null if any product is short; nothing is reserved then.
+     */
+    public Map<Integer, Integer> reserveStock(Map<Integer, Integer> qtyByProduct) throws SQLException {
+        return adjustStockInTransaction(qtyByProduct, true);
+    }
+
+    /**
+     * Put stock back for several products at once (productId -> qty).
+     * Returns the new stock of every product that still exists.
+     */
+    public Map<Integer, Integer> releaseStock(Map<Integer, Integer> qtyByProduct) throws SQLException {
+        return adjustStockInTransaction(qtyByProduct, false);
+    }
+
+    /**
+     * reserveStock on the caller's connection, joining its transaction. If this returns null
+     * some lines may already have been decremented, so the caller must roll back.
+     * ProductCache is not updated; callers should pass the result to refreshCachedStock after commit.
+     */
+    public Map<Integer, Integer> reserveStock(Connection conn, Map<Integer, Integer> qtyByProduct) throws SQLException {
+        Map<Integer, Integer> stocks = adjustStock(conn, qtyByProduct, true);
+        return stocks.size() == qtyByProduct.size() ? stocks : null;
+    }
+
+    /**
+     * releaseStock on the caller's connection, joining its transaction.
+     */
+    public Map<Integer, Integer> releaseStock(Connection conn, Map<Integer, Integer> qtyByProduct) throws SQLException {
+        return adjustStock(conn, qtyByProduct, false);
+    }
+
+    public void refreshCachedStock(Map<Integer, Integer> stockByProduct) {
+        for (Map.Entry<Integer, Integer> e : stockByProduct.entrySet()) cache.updateStock(e.getKey(), e.getValue());
+    }
+
+    private Map<Integer, Integer> adjustStockInTransaction(Map<Integer, Integer> qtyByProduct, boolean reserve) throws SQLException {
+        // hot products go through HotStockEngine, the rest through one SQL transaction
+        Map<Integer, Integer> hot = new HashMap<>();
+        Map<Integer, Integer> cold = new HashMap<>();
+        for (Map.Entry<Integer, Integer> e : qtyByProduct.entrySet()) {
+            (hotStock.isHot(e.getKey()) ? hot : cold).put(e.getKey(), e.getValue());
+        }
+
+        Map<Integer, Integer> hotStocks = new HashMap<>();
+        for (Map.Entry<Integer, Integer> e : hot.entrySet()) {
+            int stock = reserve ? hotStock.reserve(e.getKey(), e.getValue()) : hotStock.release(e.getKey(), e.getValue());
+            if (stock < 0) {
+                undoHotReservations(hotStocks.keySet(), hot);
+                return null;
+            }
+            hotStocks.put(e.getKey(), stock);
+        }
+
+        Map<Integer, Integer> stocks;
+        try {
+            stocks = adjustSqlStockInTransaction(cold, reserve);
+        } catch (SQLException e) {
+            if (reserve) undoHotReservations(hotStocks.keySet(), hot);
+            throw e;
+        }
+        if (stocks == null) {
+            undoHotReservations(hotStocks.keySet(), hot);
+            return null;
+        }
+        refreshCachedStock(hotStocks);
+        stocks.putAll(hotStocks);
+        return stocks;
+    }
+
+    private void undoHotReservations(Collection<Integer> productIds, Map<Integer, Integer> qtyByProduct) {
+        for (Integer pid : productIds) hotStock.release(pid, qtyByProduct.get(pid));
+    }
+
+    private Map<Integer, Integer> adjustSqlStockInTransaction(Map<Integer, Integer> qtyByProduct, boolean reserve) throws SQLException {
+        if (qtyByProduct.isEmpty()) return new HashMap<>();
+        try (Connection conn = DBUtils.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Map<Integer, Integer> stocks = reserve ? reserveStock(conn, qtyByProduct) : releaseStock(conn, qtyByProduct);
+                if (stocks == null) {
+                    conn.rollback();
+                    return null;
+                }
+                conn.commit();
+                refreshCachedStock(stocks);
+                return stocks;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * One UPDATE ... FROM (VALUES ...) per chunk of products, returning the new stock of each updated row.
+     * For a reservation, rows without enough stock are left alone and missing from the result.
+     */
+    private static Map<Integer, Integer> adjustStock(Connection conn, Map<Integer, Integer> qtyByProduct, boolean reserve) throws SQLException {
+        Map<Integer, Integer> stocks = new HashMap<>();
+        for (List<Integer> chunk : chunks(qtyByProduct.keySet())) {
+            StringBuilder values = new StringBuilder();
+            for (int i = 0; i < chunk.size(); i++) values.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            String sql = "UPDATE d SET d.stock = d.stock " + (reserve ? "-" : "+") + " r.qty"
+                    + " OUTPUT inserted.product_id, inserted.stock"
+                    + " FROM Ecommerce_Website.M_S_DATAS d"
+                    + " JOIN (VALUES " + values + ") AS r(product_id, qty) ON r.product_id = d.product_id"
+                    + (reserve ? " WHERE d.stock >= r.qty" : "");
+
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                int i = 1;
+                for (Integer pid : chunk) {
+                    ps.setInt(i++, pid);
+                    ps.setInt(i++, qtyByProduct.get(pid));
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) stocks.put(rs.getInt("product_id"), rs.getInt("stock"));
+                }
+            }
+        }
+        return stocks;
+    }
+
+    /**
+     * Get current stock, including the leased units of a hot product
      */
     public int getStock(int productId) {
         String sql = "SELECT stock FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?";
@@ -273,7 +702,7 @@ public class ProductDao {
 
             ps.setInt(1, productId);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getInt("stock");
+                if (rs.next()) return hotStock.overlayStock(productId, rs.getInt("stock"));
             }
 
         } catch (SQLException e) {
@@ -297,7 +726,7 @@ public class ProductDao {
         map.put("description", p.getDescription());
         map.put("price", p.getPrice());
         map.put("stock", p.getStock());
-        map.put("image", p.getImageData() != null ? Base64.getEncoder().encodeToString(p.getImageData()) : null);
+        map.put("image", getBase64Image(productId));
 
         return map;
     }
@@ -325,4 +754,28 @@ public class ProductDao {
 		return 0;
 	}
 
+    /**
+     * Bulk variant of getActiveDiscountPercent. Products without an active discount are absent from the map.
+     */
+    public Map<Integer, Double> getActiveDiscountPercents(Collection<Integer> productIds) {
+        // no discount table yet; mirrors getActiveDiscountPercent (always 0) without touching the DB
+        return new HashMap<>();
+    }
+
+    // SQL Server allows at most 2100 parameters per statement, so also 1000 (id, qty) pairs
+    private static final int IN_CHUNK_SIZE = 1000;
+
+    private static List<List<Integer>> chunks(Collection<Integer> ids) {
+        List<Integer> distinct = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<List<Integer>> out = new ArrayList<>();
+        for (int i = 0; i < distinct.size(); i += IN_CHUNK_SIZE) {
+            out.add(distinct.subList(i, Math.min(i + IN_CHUNK_SIZE, distinct.size())));
+        }
+        return out;
+    }
+
+    private static String placeholders(int n) {
+        return String.join(",", Collections.nCopies(n, "?"));
+    }
+
 }
@@ -0,0 +1,309 @@
+package dao;
+
+import model.Product;
+import utils.LoggerUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-process inverted index over product name and description, replacing LIKE '%q%' scans.
+ *
+ * Terms live in a sorted map so every query token is also matched as a prefix
+ * ("sam" finds "samsung"). All query tokens must match; results are ranked by
+ * field weight (name over description), exact over prefix matches, and term rarity.
+ * The index only returns product ids; ProductDao hydrates them.
+ *
+ * Built at startup by AppContextListener and kept current by AdminServlet. Products
+ * changed while a build is scanning are recorded and re-read once it is swapped in, as
+ * the cursor may already have passed them.
+ */
+public class ProductSearchIndex {
+
+    private static final Logger logger = LoggerUtil.getLogger(ProductSearchIndex.class);
+
+    private static final float NAME_WEIGHT = 3.0f;
+    private static final float DESCRIPTION_WEIGHT = 1.0f;
+    private static final float PREFIX_FACTOR = 0.5f;
+    // cap how many index terms one short prefix may expand to
+    private static final int MAX_PREFIX_EXPANSION = 256;
+
+    private static final ProductSearchIndex INSTANCE = new ProductSearchIndex();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // term -> (productId -> field weight)
+    private TreeMap<String, Map<Integer, Float>> postings = new TreeMap<>();
+    private Map<Integer, Doc> docs = new HashMap<>();
+    private int maxProductId;
+    private volatile boolean ready;
+
+    // guarded by this: products changed during the running build (null when none runs)
+    private Set<Integer> changedDuringBuild;
+    private boolean addedDuringBuild;
+
+    private ProductSearchIndex() {
+    }
+
+    public static ProductSearchIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * False until the first successful build; callers fall back to SQL meanwhile.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Rebuild from M_S_DATAS (one cursor pass, no image column) and swap in atomically.
+     */
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        TreeMap<String, Map<Integer, Float>> newPostings = new TreeMap<>();
+        Map<Integer, Doc> newDocs = new HashMap<>();
+        int[] maxId = {0};
+        synchronized (this) {
+            changedDuringBuild = new HashSet<>();
+            addedDuringBuild = false;
+        }
+        try {
+            new ProductDao().forEachProduct(null, p -> {
+                addTo(newPostings, newDocs, p);
+                maxId[0] = Math.max(maxId[0], p.getProductId());
+            });
+        } catch (Exception e) {
+            logger.error("Search index build failed", e);
+            synchronized (this) {
+                changedDuringBuild = null;
+            }
+            return;
+        }
+        Set<Integer> changed;
+        boolean added;
+        lock.writeLock().lock();
+        try {
+            postings = newPostings;
+            docs = newDocs;
+            maxProductId = maxId[0];
+            ready = true;
+            // from here on changes go to the new index directly
+            synchronized (this) {
+                changed = changedDuringBuild;
+                added = addedDuringBuild;
+                changedDuringBuild = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        logger.info("Search index built: " + newDocs.size() + " products, " + newPostings.size()
+                + " terms in " + (System.currentTimeMillis() - start) + "ms");
+
+        // re-read outside the write lock, so searches are not held up by the DB
+        if (added) indexNewProducts();
+        for (Integer productId : changed) reindexProduct(productId);
+        if (added || !changed.isEmpty()) {
+            logger.info("Search index caught up with " + changed.size() + " products changed during the build"
+                    + (added ? " and new products" : ""));
+        }
+    }
+
+    private synchronized void recordChange(Integer productId) {
+        if (changedDuringBuild == null) return;
+        if (productId == null) addedDuringBuild = true;
+        else changedDuringBuild.add(productId);
+    }
+
+    /**
+     * Index products added since the last build/update (new ids are always higher).
+     */
+    public void indexNewProducts() {
+        recordChange(null);
+        if (!ready) return;
+        int after;
+        lock.readLock().lock();
+        try {
+            after = maxProductId;
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            new ProductDao().forEachProduct(null, after, this::upsert);
+        } catch (Exception e) {
+            logger.error("Indexing new products failed", e);
+        }
+    }
+
+    /**
+     * Re-read one product from the DB and (re)index it, or drop it if it no longer exists.
+     */
+    public void reindexProduct(int productId) {
+        recordChange(productId);
+        if (!ready) return;
+        Product p = new ProductDao().getProductById(productId);
+        if (p == null) remove(productId);
+        else upsert(p);
+    }
+
+    public void upsert(Product p) {
+        lock.writeLock().lock();
+        try {
+            removeFrom(postings, docs, p.getProductId());
+            addTo(postings, docs, p);
+            maxProductId = Math.max(maxProductId, p.getProductId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int productId) {
+        recordChange(productId);
+        lock.writeLock().lock();
+        try {
+            removeFrom(postings, docs, productId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Ranked product ids matching every token of the query, optionally restricted to a category.
+     */
+    public List<Integer> search(String query, Integer categoryId, int limit) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) return Collections.emptyList();
+
+        lock.readLock().lock();
+        try {
+            int n = Math.max(1, docs.size());
+            Map<Integer, Float> scores = null;
+            for (String token : new LinkedHashSet<>(tokens)) {
+                Map<Integer, Float> tokenScores = new HashMap<>();
+                SortedMap<String, Map<Integer, Float>> range = postings.subMap(token, token + Character.MAX_VALUE);
+                int expanded = 0;
+                for (Map.Entry<String, Map<Integer, Float>> e : range.entrySet()) {
+                    if (expanded++ >= MAX_PREFIX_EXPANSION) break;
+                    Map<Integer, Float> posting = e.getValue();
+                    float idf = (float) Math.log(1.0 + (double) n / posting.size());
+                    float factor = e.getKey().equals(token) ? 1.0f : PREFIX_FACTOR;
+                    for (Map.Entry<Integer, Float> pe : posting.entrySet()) {
+                        if (scores != null && !scores.containsKey(pe.getKey())) continue;
+                        float s = pe.getValue() * factor * idf;
+                        tokenScores.merge(pe.getKey(), s, Math::max);
+                    }
+                }
+                if (scores == null) {
+                    scores = tokenScores;
+                } else {
+                    Map<Integer, Float> combined = new HashMap<>();
+                    for (Map.Entry<Integer, Float> e : tokenScores.entrySet()) {
+                        Float prev = scores.get(e.getKey());
+                        if (prev != null) combined.put(e.getKey(), prev + e.getValue());
+                    }
+                    scores = combined;
+                }
+                if (scores.isEmpty()) return Collections.emptyList();
+            }
+
+            List<Map.Entry<Integer, Float>> ranked = new ArrayList<>();
+            for (Map.Entry<Integer, Float> e : scores.entrySet()) {
+                if (categoryId != null) {
+                    Doc d = docs.get(e.getKey());
+                    if (d == null || d.categoryId != categoryId) continue;
+                }
+                ranked.add(e);
+            }
+            ranked.sort((a, b) -> {
+                int c = Float.compare(b.getValue(), a.getValue());
+                return c != 0 ? c : Integer.compare(a.getKey(), b.getKey());
+            });
+
+            List<Integer> out = new ArrayList<>(Math.min(limit, ranked.size()));
+            for (int i = 0; i < ranked.size() && i < limit; i++) out.add(ranked.get(i).getKey());
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docs.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lower-cased alphanumeric tokens.
+     */
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        if (text == null) return out;
+        StringBuilder cur = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                cur.append(Character.toLowerCase(c));
+            } else if (cur.length() > 0) {
+                out.add(cur.toString());
+                cur.setLength(0);
+            }
+        }
+        if (cur.length() > 0) out.add(cur.toString());
+        return out;
+    }
+
+    private static void addTo(TreeMap<String, Map<Integer, Float>> postings, Map<Integer, Doc> docs, Product p) {
+        Map<String, Float> weights = new HashMap<>();
+        for (String t : tokenize(p.getProductName())) weights.merge(t, NAME_WEIGHT, Math::max);
+        for (String t : tokenize(p.getDescription())) weights.merge(t, DESCRIPTION_WEIGHT, Float::sum);
+        for (Map.Entry<String, Float> e : weights.entrySet()) {
+            postings.computeIfAbsent(e.getKey(), k -> new HashMap<>()).put(p.getProductId(), e.getValue());
+        }
+        docs.put(p.getProductId(), new Doc(p.getCategoryId(), new HashSet<>(weights.keySet())));
+    }
+
+    private static void removeFrom(TreeMap<String, Map<Integer, Float>> postings, Map<Integer, Doc> docs, int productId) {
+        Doc d = docs.remove(productId);
+        if (d == null) return;
+        for (String t : d.terms) {
+            Map<Integer, Float> posting = postings.get(t);
+            if (posting != null) {
+                posting.remove(productId);
+                if (posting.isEmpty()) postings.remove(t);
+            }
+        }
+    }
+
+    private static final class Doc {
+        final int categoryId;
+        final Set<String> terms;
+
+        Doc(int categoryId, Set<String> terms) {
+            this.categoryId = categoryId;
+            this.terms = terms;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package dao;
+
+import java.io.IOException;
+
+/**
+ * Callback for DAO methods that stream rows straight from the ResultSet cursor
+ * instead of building a List (e.g. to write JSON while reading).
+ */
+public interface RowHandler<T> {
+
+	void handle(T row) throws IOException;
+
+}
@@ -0,0 +1,362 @@
+package dao;
+
+import model.Category;
+import utils.LoggerUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Typeahead suggestions from a prefix trie over product and category names.
+ *
+ * The trie is path-compressed (radix): a chain of nodes with one child and no name
+ * ending in it becomes a single edge labelled with the whole substring. Every remaining
+ * node keeps a precomputed top-K list, so a lookup is one walk down the prefix and a
+ * copy of at most K entries; a prefix ending inside an edge takes the list of the node
+ * below it, which is what every node of the chain had. Names are indexed at each word
+ * start ("gal" suggests "Samsung Galaxy"), with whole-name prefixes ranked first.
+ *
+ * The trie is immutable once built; AdminServlet calls refresh() after catalog
+ * changes, which rebuilds it off the request thread and swaps it in.
+ */
+public class SuggestIndex {
+
+    private static final Logger logger = LoggerUtil.getLogger(SuggestIndex.class);
+
+    /** Largest k a caller may ask for; also the size of the per-node lists. */
+    public static final int MAX_K = 10;
+
+    private static final int CATEGORY_BOOST = 2;
+    private static final int NAME_START_BOOST = 1;
+
+    private static final SuggestIndex INSTANCE = new SuggestIndex();
+
+    private volatile Trie trie = Trie.EMPTY;
+
+    private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "suggest-index-build");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    private final AtomicLong maxLookupNanos = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private volatile long lastBuildMillis;
+
+    private SuggestIndex() {
+    }
+
+    public static SuggestIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Top suggestions for a typed prefix, best first.
+     */
+    public List<Suggestion> suggest(String prefix, int k) {
+        long start = System.nanoTime();
+        List<Suggestion> out = trie.lookup(normalize(prefix), Math.max(1, Math.min(MAX_K, k)));
+        long took = System.nanoTime() - start;
+        lookups.incrementAndGet();
+        lookupNanos.addAndGet(took);
+        maxLookupNanos.accumulateAndGet(took, Math::max);
+        return out;
+    }
+
+    /**
+     * Schedule a rebuild; several calls made while one is queued collapse into a single rebuild.
+     */
+    public void refresh() {
+        if (rebuildPending.compareAndSet(false, true)) {
+            rebuilder.execute(() -> {
+                rebuildPending.set(false);
+                rebuild();
+            });
+        }
+    }
+
+    /**
+     * Build a new trie from M_S_DATAS and the category list and swap it in.
+     */
+    public void rebuild() {
+        long start = System.currentTimeMillis();
+        Builder b = new Builder();
+        try {
+            new ProductDao().forEachProduct(null, p ->
+                    b.add(new Suggestion("product", p.getProductId(), p.getProductName()), 0));
+            List<Category> categories = new CategoryDao().getAllCategories();
+            if (categories != null) {
+                for (Category c : categories) {
+                    b.add(new Suggestion("category", c.getCategoryId(), c.getCategoryName()), CATEGORY_BOOST);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Suggest index build failed", e);
+            return;
+        }
+        trie = b.build();
+        rebuilds.incrementAndGet();
+        lastBuildMillis = System.currentTimeMillis() - start;
+        logger.info("Suggest index built: " + trie.entries + " names, " + trie.nodes + " nodes in " + lastBuildMillis + "ms");
+    }
+
+    public void shutdown() {
+        rebuilder.shutdownNow();
+    }
+
+    public Map<String, Object> stats() {
+        Trie t = trie;
+        long n = lookups.get();
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("entries", t.entries);
+        m.put("nodes", t.nodes);
+        m.put("approxBytes", t.approxBytes);
+        m.put("lookups", n);
+        m.put("avgLookupMicros", n == 0 ? 0.0 : Math.round(lookupNanos.get() / (double) n / 10.0) / 100.0);
+        m.put("maxLookupMicros", Math.round(maxLookupNanos.get() / 10.0) / 100.0);
+        m.put("rebuilds", rebuilds.get());
+        m.put("lastBuildMillis", lastBuildMillis);
+        return m;
+    }
+
+    /**
+     * Lower case, with runs of anything but letters and digits collapsed to one space.
+     */
+    static String normalize(String s) {
+        if (s == null) return "";
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean space = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && sb.length() > 0) sb.append(' ');
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    public static final class Suggestion {
+        private final String type;
+        private final int id;
+        private final String text;
+
+        Suggestion(String type, int id, String text) {
+            this.type = type;
+            this.id = id;
+            this.text = text;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static final class Ranked {
+        final Suggestion s;
+        final int score;
+
+        Ranked(Suggestion s, int score) {
+            this.s = s;
+            this.score = score;
+        }
+
+        // higher score, then shorter name, then alphabetical
+        static int compare(Ranked a, Ranked b) {
+            int c = Integer.compare(b.score, a.score);
+            if (c != 0) return c;
+            c = Integer.compare(a.s.text.length(), b.s.text.length());
+            return c != 0 ? c : a.s.text.compareToIgnoreCase(b.s.text);
+        }
+    }
+
+    /** Mutable, uncompressed trie used only while building. */
+    private static final class Builder {
+        final BuildNode root = new BuildNode();
+        int entries;
+        long suggestionBytes;
+
+        void add(Suggestion s, int boost) {
+            String key = normalize(s.text);
+            if (key.isEmpty()) return;
+            entries++;
+            // the Suggestion and its name; type strings are shared literals
+            suggestionBytes += align(OBJECT_HEADER + 3 * REFERENCE + 4) + stringBytes(s.text);
+            for (int i = 0; i < key.length(); i++) {
+                if (i == 0 || key.charAt(i - 1) == ' ') {
+                    insert(key.substring(i), new Ranked(s, boost + (i == 0 ? NAME_START_BOOST : 0)));
+                }
+            }
+        }
+
+        private void insert(String key, Ranked r) {
+            BuildNode node = root;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.computeIfAbsent(key.charAt(i), c -> new BuildNode());
+                node.offer(r);
+            }
+            node.ends++;
+        }
+
+        Trie build() {
+            long[] counts = new long[2]; // nodes, bytes
+            Node root = freeze(this.root, counts);
+            return new Trie(root, entries, (int) counts[0], counts[1] + suggestionBytes);
+        }
+
+        // counts[1] gets the node's footprint: the object, its arrays and edge labels (leaves share empty arrays)
+        private static Node freeze(BuildNode b, long[] counts) {
+            int n = b.children.size();
+            char[] keys = n == 0 ? Node.NO_KEYS : new char[n];
+            String[] labels = n == 0 ? Node.NO_LABELS : new String[n];
+            Node[] children = n == 0 ? Node.NO_CHILDREN : new Node[n];
+            long bytes = align(OBJECT_HEADER + 4 * REFERENCE);
+            if (n > 0) bytes += arrayBytes(n, 2) + 2 * arrayBytes(n, REFERENCE);
+            int i = 0;
+            for (Map.Entry<Character, BuildNode> e : b.children.entrySet()) {
+                // a node with one child and no name ending in it has its child's top-K: fold it into the edge
+                StringBuilder label = new StringBuilder().append(e.getKey().charValue());
+                BuildNode child = e.getValue();
+                while (child.children.size() == 1 && child.ends == 0) {
+                    Map.Entry<Character, BuildNode> only = child.children.firstEntry();
+                    label.append(only.getKey().charValue());
+                    child = only.getValue();
+                }
+                keys[i] = e.getKey();
+                labels[i] = label.toString();
+                bytes += stringBytes(labels[i]);
+                children[i++] = freeze(child, counts);
+            }
+            Suggestion[] top = new Suggestion[b.top.size()];
+            for (int j = 0; j < top.length; j++) top[j] = b.top.get(j).s;
+            bytes += arrayBytes(top.length, REFERENCE);
+            counts[0]++;
+            counts[1] += bytes;
+            return new Node(keys, labels, children, top);
+        }
+    }
+
+    // footprint estimate for a 64-bit JVM with compressed oops and compact strings
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static long arrayBytes(int length, int elementBytes) {
+        return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    private static long stringBytes(String s) {
+        boolean latin1 = true;
+        for (int i = 0; i < s.length() && latin1; i++) latin1 = s.charAt(i) < 256;
+        // String object (value, hash, coder, hashIsZero) plus its byte[]
+        return align(OBJECT_HEADER + REFERENCE + 4 + 2) + arrayBytes(s.length(), latin1 ? 1 : 2);
+    }
+
+    private static final class BuildNode {
+        final TreeMap<Character, BuildNode> children = new TreeMap<>();
+        final List<Ranked> top = new ArrayList<>(2);
+        // names whose indexed key ends here
+        int ends;
+
+        // keep the best MAX_K distinct suggestions seen at this node
+        void offer(Ranked r) {
+            for (int i = 0; i < top.size(); i++) {
+                if (top.get(i).s == r.s) {
+                    if (r.score <= top.get(i).score) return;
+                    top.remove(i);
+                    break;
+                }
+            }
+            int pos = 0;
+            while (pos < top.size() && Ranked.compare(top.get(pos), r) <= 0) pos++;
+            if (pos >= MAX_K) return;
+            top.add(pos, r);
+            if (top.size() > MAX_K) top.remove(top.size() - 1);
+        }
+    }
+
+    /**
+     * Frozen node: the first character of each outgoing edge, sorted for binary search, the
+     * edge labels, and the precomputed top-K.
+     */
+    private static final class Node {
+        // shared by all leaves
+        static final char[] NO_KEYS = new char[0];
+        static final String[] NO_LABELS = new String[0];
+        static final Node[] NO_CHILDREN = new Node[0];
+
+        final char[] keys;
+        final String[] labels;
+        final Node[] children;
+        final Suggestion[] top;
+
+        Node(char[] keys, String[] labels, Node[] children, Suggestion[] top) {
+            this.keys = keys;
+            this.labels = labels;
+            this.children = children;
+            this.top = top;
+        }
+    }
+
+    private static final class Trie {
+        static final Trie EMPTY = new Trie(new Node(Node.NO_KEYS, Node.NO_LABELS, Node.NO_CHILDREN, new Suggestion[0]), 0, 1, 0);
+
+        final Node root;
+        final int entries;
+        final int nodes;
+        final long approxBytes;
+
+        Trie(Node root, int entries, int nodes, long approxBytes) {
+            this.root = root;
+            this.entries = entries;
+            this.nodes = nodes;
+            this.approxBytes = approxBytes;
+        }
+
+        List<Suggestion> lookup(String prefix, int k) {
+            if (prefix.isEmpty()) return Collections.emptyList();
+            Node node = root;
+            int i = 0;
+            while (i < prefix.length()) {
+                int idx = Arrays.binarySearch(node.keys, prefix.charAt(i));
+                if (idx < 0) return Collections.emptyList();
+                // the prefix may end inside the edge
+                String label = node.labels[idx];
+                int n = Math.min(label.length(), prefix.length() - i);
+                if (!prefix.regionMatches(i, label, 0, n)) return Collections.emptyList();
+                node = node.children[idx];
+                i += n;
+            }
+            return Arrays.asList(Arrays.copyOf(node.top, Math.min(k, node.top.length)));
+        }
+    }
+}
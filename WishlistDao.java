@@ -3,6 +3,7 @@ package dao;
 import utils.DBUtils;
 import model.Product;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -138,7 +139,19 @@ public class WishlistDao {
 
 	public List<Product> getWishlistProducts(int userId) {
 	    List<Product> out = new ArrayList<>();
-	    String sql = "SELECT d.* FROM Ecommerce_Website.M_S_WISHLIST w JOIN Ecommerce_Website.M_S_DATAS d ON w.product_id = d.product_id WHERE w.user_id = ? ORDER BY w.created_at DESC";
+	    try {
+	        forEachWishlistProduct(userId, out::add);
+	    } catch (SQLException | IOException e) {
+	        e.printStackTrace();
+	    }
+	    return out;
+	}
+
+	/**
+	 * Stream the user's wishlist products straight from the cursor.
+	 */
+	public void forEachWishlistProduct(int userId, RowHandler<Product> handler) throws SQLException, IOException {
+	    String sql = "SELECT d.product_id, d.category_id, d.product_name, d.description, d.price, d.stock FROM Ecommerce_Website.M_S_WISHLIST w JOIN Ecommerce_Website.M_S_DATAS d ON w.product_id = d.product_id WHERE w.user_id = ? ORDER BY w.created_at DESC";
 	    Connection conn = null;
 	    PreparedStatement ps = null;
 	    ResultSet rs = null;
@@ -148,10 +161,8 @@ public class WishlistDao {
 	        ps.setInt(1, userId);
 	        rs = ps.executeQuery();
 	        while (rs.next()) {
-	            out.add(mapProduct(rs));
+	            handler.handle(mapProduct(rs));
 	        }
-	    } catch (SQLException e) {
-	        e.printStackTrace();
 	    } finally {
 	        if (rs != null) {
 	            try { 
@@ -175,7 +186,6 @@ public class WishlistDao {
 	            	}
 	        }
 	    }
-	    return out;
 	}
 
 	public int countForUser(int userId) {
@@ -226,12 +236,7 @@ public class WishlistDao {
 	    p.setPrice(rs.getDouble("price"));
 	    p.setStock(rs.getInt("stock"));
 
-	    // If image column is VARBINARY:
-	    p.setImageData(rs.getBytes("image"));
-
-	    // If for any reason the image column is still varchar (legacy), fallback:
-	    // String imgPath = rs.getString("image");
-	    // if (imgPath != null) p.setImageData(imgPath.getBytes());
+	    // image BLOB is not selected here; WishlistServlet points imageUrl at ImageServlet instead
 
 	    return p;
 	}
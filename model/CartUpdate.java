@@ -0,0 +1,44 @@
+package model;
+
+import java.util.List;
+import java.util.Map;
+
+public class CartUpdate {
+    private boolean ok;
+    private String message;
+    private Integer shortProductId;
+    private List<CartItem> lines;
+    private Map<Integer, Integer> updatedStocks;
+    private int itemCount;
+    private int totalQty;
+    private double totalAmount;
+
+    public CartUpdate(boolean ok, String message) {
+        this.ok = ok;
+        this.message = message;
+    }
+
+    public boolean isOk() { return ok; }
+    public void setOk(boolean ok) { this.ok = ok; }
+
+    public String getMessage() { return message; }
+    public void setMessage(String message) { this.message = message; }
+
+    public Integer getShortProductId() { return shortProductId; }
+    public void setShortProductId(Integer shortProductId) { this.shortProductId = shortProductId; }
+
+    public List<CartItem> getLines() { return lines; }
+    public void setLines(List<CartItem> lines) { this.lines = lines; }
+
+    public Map<Integer, Integer> getUpdatedStocks() { return updatedStocks; }
+    public void setUpdatedStocks(Map<Integer, Integer> updatedStocks) { this.updatedStocks = updatedStocks; }
+
+    public int getItemCount() { return itemCount; }
+    public void setItemCount(int itemCount) { this.itemCount = itemCount; }
+
+    public int getTotalQty() { return totalQty; }
+    public void setTotalQty(int totalQty) { this.totalQty = totalQty; }
+
+    public double getTotalAmount() { return totalAmount; }
+    public void setTotalAmount(double totalAmount) { this.totalAmount = totalAmount; }
+}
@@ -0,0 +1,65 @@
+package model;
+
+import java.util.Date;
+
+/**
+ * One row of the paged order history: the order without its lines.
+ */
+public class OrderSummary {
+    private int orderId;
+    private Date orderDate;
+    private double totalAmount;
+    private String status;
+    private int itemCount;
+
+    public OrderSummary() {
+    }
+
+    public OrderSummary(int orderId, Date orderDate, double totalAmount, String status, int itemCount) {
+        this.orderId = orderId;
+        this.orderDate = orderDate;
+        this.totalAmount = totalAmount;
+        this.status = status;
+        this.itemCount = itemCount;
+    }
+
+    public int getOrderId() {
+        return orderId;
+    }
+
+    public void setOrderId(int orderId) {
+        this.orderId = orderId;
+    }
+
+    public Date getOrderDate() {
+        return orderDate;
+    }
+
+    public void setOrderDate(Date orderDate) {
+        this.orderDate = orderDate;
+    }
+
+    public double getTotalAmount() {
+        return totalAmount;
+    }
+
+    public void setTotalAmount(double totalAmount) {
+        this.totalAmount = totalAmount;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public void setItemCount(int itemCount) {
+        this.itemCount = itemCount;
+    }
+}
@@ -12,6 +12,8 @@ public class Product {
     // changed: store raw image bytes
     private byte[] imageData;
     private String categoryname;
+    // set on list results, which don't load imageData; points at ImageServlet
+    private String imageUrl;
 
     public Product() {
     }
@@ -101,6 +103,14 @@ public class Product {
         this.categoryname = categoryname;
     }
 
+    public String getImageUrl() {
+        return imageUrl;
+    }
+
+    public void setImageUrl(String imageUrl) {
+        this.imageUrl = imageUrl;
+    }
+
     public String getImageBase64() {
         if (imageData == null) return "";
         return Base64.getEncoder().encodeToString(imageData);
@@ -0,0 +1,44 @@
+package model;
+
+import java.util.List;
+
+public class ProductPage {
+    private List<Product> items;
+    // opaque keyset cursor for the next page, null on the last page
+    private String nextCursor;
+    // only filled when the caller asked for it
+    private Integer total;
+
+    public ProductPage() {
+    }
+
+    public ProductPage(List<Product> items, String nextCursor, Integer total) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+        this.total = total;
+    }
+
+    public List<Product> getItems() {
+        return items;
+    }
+
+    public void setItems(List<Product> items) {
+        this.items = items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public Integer getTotal() {
+        return total;
+    }
+
+    public void setTotal(Integer total) {
+        this.total = total;
+    }
+}
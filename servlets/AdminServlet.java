@@ -1,11 +1,24 @@
 package servlets;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import dao.AdminDao;
+import dao.CartCache;
+import dao.CouponRules;
+import dao.HotStockEngine;
+import dao.IdempotencyStore;
+import dao.ImageCache;
+import dao.ImageVariants;
 import dao.OrderDao;
+import dao.OrderHistoryCache;
+import dao.ProductCache;
+import dao.ProductDao;
+import dao.ProductSearchIndex;
+import dao.SuggestIndex;
 import model.Order;
 import model.Product;
 import model.User;
+import utils.DBUtils;
 import utils.LoggerUtil;
 
 import javax.servlet.ServletException;
@@ -33,6 +46,7 @@ public class AdminServlet extends HttpServlet {
     private static final Logger logger = LoggerUtil.getLogger(AdminServlet.class);
 
     private final AdminDao dao = new AdminDao();
+    private final ProductDao productDao = new ProductDao();
     private final Gson gson = new Gson();
 
     private boolean isAdminLoggedIn(HttpSession session) {
@@ -54,6 +68,31 @@ public class AdminServlet extends HttpServlet {
         return true;
     }
 
+    // catalog mutations: keep the read-side caches and the search index in step with the DB
+
+    private void productAdded(int categoryId) {
+        ProductCache.getInstance().invalidateCategory(categoryId);
+        ProductSearchIndex.getInstance().indexNewProducts();
+        SuggestIndex.getInstance().refresh();
+    }
+
+    private void productUpdated(int productId, int categoryId) {
+        HotStockEngine.getInstance().discardLease(productId);
+        ImageCache.getInstance().invalidateProduct(productId);
+        ProductCache.getInstance().invalidateProduct(productId);
+        ProductCache.getInstance().invalidateCategory(categoryId);
+        ProductSearchIndex.getInstance().reindexProduct(productId);
+        SuggestIndex.getInstance().refresh();
+    }
+
+    private void productDeleted(int productId) {
+        ImageVariants.getInstance().delete(productId);
+        ImageCache.getInstance().invalidateProduct(productId);
+        ProductCache.getInstance().invalidateProduct(productId);
+        ProductSearchIndex.getInstance().remove(productId);
+        SuggestIndex.getInstance().refresh();
+    }
+
     @Override
     protected void doGet(HttpServletRequest req,
                          HttpServletResponse res)
@@ -73,7 +112,7 @@ public class AdminServlet extends HttpServlet {
                 case "listUsers":
                     if (!requireAdmin(req, res)) return;
                     List<User> users = dao.getAllUsers();
-                    res.getWriter().write(gson.toJson(users));
+                    JsonStreaming.writeArray(gson, JsonStreaming.writer(req, res), users, User.class);
                     break;
 
                 case "getAdmin":
@@ -107,7 +146,7 @@ public class AdminServlet extends HttpServlet {
                     if (!requireAdmin(req, res)) return;
                     OrderDao orderDao = new OrderDao();
                     List<Order> orders = orderDao.listOrders();
-                    res.getWriter().write(gson.toJson(orders));
+                    JsonStreaming.writeArray(gson, JsonStreaming.writer(req, res), orders, Order.class);
                     break;
 
                 case "listCategories":
@@ -116,6 +155,28 @@ public class AdminServlet extends HttpServlet {
                     res.getWriter().write(gson.toJson(cats));
                     break;
 
+                case "cacheStats":
+                    if (!requireAdmin(req, res)) return;
+                    Map<String, Object> stats = new HashMap<>();
+                    stats.put("dbPool", DBUtils.poolStats());
+                    stats.put("productCache", ProductCache.getInstance().stats());
+                    Map<String, Object> search = new HashMap<>();
+                    search.put("ready", ProductSearchIndex.getInstance().isReady());
+                    search.put("products", ProductSearchIndex.getInstance().size());
+                    search.put("terms", ProductSearchIndex.getInstance().termCount());
+                    stats.put("searchIndex", search);
+                    stats.put("suggest", SuggestIndex.getInstance().stats());
+                    stats.put("hotStock", HotStockEngine.getInstance().stats());
+                    stats.put("cartCache", CartCache.getInstance().stats());
+                    stats.put("couponRules", CouponRules.getInstance().stats());
+                    stats.put("imageCache", ImageCache.getInstance().stats());
+                    stats.put("imageProxy", RemoteImageProxy.getInstance().stats());
+                    stats.put("checkout", CheckoutExecutor.getInstance().stats());
+                    stats.put("idempotency", IdempotencyStore.getInstance().stats());
+                    stats.put("orderHistory", OrderHistoryCache.getInstance().stats());
+                    res.getWriter().write(gson.toJson(stats));
+                    break;
+
                 default:
                     res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     logger.warn("Unknown GET action: " + action);
@@ -153,8 +214,15 @@ public class AdminServlet extends HttpServlet {
 
                 case "listProducts":
                     if (!requireAdmin(req, res)) return;
-                    List<Product> products = dao.getAllProducts();
-                    res.getWriter().write(gson.toJson(products));
+                    // streamed from the cursor (fresh, uncached) with image URLs instead of inline bytes
+                    JsonWriter w = JsonStreaming.writer(req, res);
+                    w.beginArray();
+                    productDao.forEachProduct(null, p -> {
+                        p.setImageUrl(ImageServlet.productImageUrl(req.getContextPath(), p.getProductId(), ImageVariants.Size.THUMB));
+                        gson.toJson(p, Product.class, w);
+                    });
+                    w.endArray();
+                    w.flush();
                     break;
 
                 case "addProduct":
@@ -187,8 +255,11 @@ public class AdminServlet extends HttpServlet {
                         }
 
                         Product newProduct = new Product(categoryId, name, desc, price, stock, imageBytes);
-                        boolean ok = dao.addProduct(newProduct);
-                        res.getWriter().write(ok ? "{\"status\":\"ok\"}" : "{\"status\":\"fail\"}");
+                        // the generated key ties the image variants to exactly this row
+                        int productId = productDao.addProduct(newProduct);
+                        if (imageBytes != null) ImageVariants.getInstance().storeForUpload(productId, imageBytes);
+                        productAdded(categoryId);
+                        res.getWriter().write("{\"status\":\"ok\",\"productId\":" + productId + "}");
                     } catch (NumberFormatException nfe) {
                         res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                         res.getWriter().write("{\"error\":\"Invalid numeric input\"}");
@@ -227,6 +298,10 @@ public class AdminServlet extends HttpServlet {
 
                         Product updateProduct = new Product(productId, categoryId, name, desc, price, stock, imageBytes);
                         boolean ok = dao.updateProduct(updateProduct);
+                        if (ok) {
+                            if (imageBytes != null) ImageVariants.getInstance().storeForUpload(productId, imageBytes);
+                            productUpdated(productId, categoryId);
+                        }
                         res.getWriter().write(ok ? "{\"status\":\"ok\"}" : "{\"status\":\"fail\"}");
                     } catch (NumberFormatException nfe) {
                         res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -239,6 +314,7 @@ public class AdminServlet extends HttpServlet {
                     try {
                         int pid = Integer.parseInt(req.getParameter("productId"));
                         boolean ok = dao.deleteProduct(pid);
+                        if (ok) productDeleted(pid);
                         res.getWriter().write(ok ? "{\"status\":\"ok\"}" : "{\"status\":\"fail\"}");
                     } catch (NumberFormatException nfe) {
                         res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -0,0 +1,45 @@
+package servlets;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+import org.apache.log4j.Logger;
+
+import dao.CouponRules;
+import dao.HotStockEngine;
+import dao.ProductSearchIndex;
+import dao.SuggestIndex;
+import utils.DBUtils;
+import utils.LoggerUtil;
+
+/**
+ * Application startup / shutdown hooks.
+ */
+@WebListener
+public class AppContextListener implements ServletContextListener {
+
+    private static final Logger logger = LoggerUtil.getLogger(AppContextListener.class);
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        logger.info("Ecommerce_Website starting");
+        HotStockEngine.getInstance().start(HotStockEngine.configuredProducts());
+        // build off the startup thread; searches fall back to SQL until the index is ready
+        Thread t = new Thread(() -> ProductSearchIndex.getInstance().rebuild(), "search-index-build");
+        t.setDaemon(true);
+        t.start();
+        SuggestIndex.getInstance().refresh();
+        CouponRules.getInstance().preload();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        logger.info("Ecommerce_Website stopping, " + DBUtils.poolStats());
+        SuggestIndex.getInstance().shutdown();
+        HotStockEngine.getInstance().stop();
+        RemoteImageProxy.shutdown();
+        CheckoutExecutor.shutdown();
+        DBUtils.shutdown();
+    }
+}
@@ -13,11 +13,16 @@ import javax.servlet.http.*;
 import org.apache.log4j.Logger;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
+import dao.CartCache;
 import dao.CartDao;
-import dao.ProductDao;
+import dao.CartService;
+import dao.ImageVariants;
 import model.CartItem;
+import model.CartUpdate;
 import utils.LoggerUtil;
 
 @WebServlet("/CartServlet")
@@ -25,9 +30,10 @@ public class CartServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
 
     private static final Logger logger = LoggerUtil.getLogger(CartServlet.class);
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private final Gson gson = new Gson();
     private final CartDao cartDao = new CartDao();
-    private final ProductDao productDao = new ProductDao();
+    private final CartService cartService = new CartService();
+    private final CartCache cartCache = CartCache.getInstance();
 
     @Override
     protected void doGet(HttpServletRequest request,
@@ -47,8 +53,8 @@ public class CartServlet extends HttpServlet {
         int userId = (Integer) session.getAttribute("userId");
 
         try {
-            List<CartItem> items = cartDao.getCartItems(userId);
-            response.getWriter().print(gson.toJson(items));
+            List<CartItem> items = cartCache.getCart(userId, cartDao);
+            JsonStreaming.writeArray(gson, JsonStreaming.writer(request, response), items, CartItem.class);
         } catch (SQLException e) {
             e.printStackTrace();
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -74,137 +80,90 @@ public class CartServlet extends HttpServlet {
         }
 
         int userId = (Integer) session.getAttribute("userId");
-        Map<Integer, Integer> updatedStocks = new HashMap<>();
 
-        try {
+        try (CartCache.Write cacheWrite = cartCache.beginWrite(userId)) {
+            CartUpdate update;
+            Integer productId = null;
             if ("add".equals(action)) {
-                int productId = Integer.parseInt(request.getParameter("productId"));
+                productId = Integer.parseInt(request.getParameter("productId"));
                 int qty = 1;
                 try { qty = Integer.parseInt(request.getParameter("qty")); } catch (NumberFormatException ignored) {}
-
-                int newStock = productDao.decrementStockAndGet(productId, qty);
-                if (newStock < 0) {
-                    logger.warn("Out of stock now for productId=" + productId);
-                    response.getWriter().print(gson.toJson(Map.of("status", "fail", "message", "Out of stock")));
-                    return;
-                }
-
-                try {
-                    cartDao.addToCart(userId, productId, qty);
-                    updatedStocks.put(productId, newStock);
-                } catch (SQLException cartEx) {
-                    productDao.incrementStockAndGet(productId, qty);
-                    cartEx.printStackTrace();
-                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                    response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Cart insert failed")));
+                if (qty <= 0) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Invalid quantity")));
                     return;
                 }
+                update = cartService.add(userId, productId, qty);
 
             } else if ("update".equals(action)) {
-                int productId = Integer.parseInt(request.getParameter("productId"));
+                productId = Integer.parseInt(request.getParameter("productId"));
                 int newQty = Integer.parseInt(request.getParameter("qty"));
-
-                List<CartItem> items = cartDao.getCartItems(userId);
-                int currentQty = 0;
-                for (CartItem it : items) {
-                    if (it.getProductId() == productId) { currentQty = it.getQty(); break; }
-                }
-
-                if (newQty == currentQty) {
-                	
-                } 
-                else if (newQty > currentQty) {
-                    int diff = newQty - currentQty;
-                    int newStock = productDao.decrementStockAndGet(productId, diff);
-                    if (newStock < 0) {
-                        response.getWriter().print(gson.toJson(Map.of("status", "fail", "message", "Not enough stock")));
-                        return;
-                    }
-                    try {
-                        cartDao.updateQuantity(userId, productId, newQty);
-                        updatedStocks.put(productId, newStock);
-                        logger.info("Cart quantity increased for productId=" + productId);
-                    } catch (SQLException ex) {
-                        productDao.incrementStockAndGet(productId, diff);
-                        ex.printStackTrace();
-                        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                        response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Cart update failed")));
-                        return;
-                    }
-                } else {
-                    int diff = currentQty - newQty;
-                    try {
-                        cartDao.updateQuantity(userId, productId, newQty);
-                        int newStock = productDao.incrementStockAndGet(productId, diff);
-                        if (newStock >= 0) updatedStocks.put(productId, newStock);
-                    } catch (SQLException ex) {
-                        ex.printStackTrace();
-                        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                        response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Cart update failed")));
-                        return;
-                    }
-                }
-
-            }
-            else if ("remove".equals(action)) {
-                int productId = Integer.parseInt(request.getParameter("productId"));
-
-                List<CartItem> itemsBefore = cartDao.getCartItems(userId);
-                int currentQty = 0;
-                for (CartItem it : itemsBefore) {
-                    if (it.getProductId() == productId) { currentQty = it.getQty(); break; }
-                }
-
-                try {
-                    cartDao.removeFromCart(userId, productId);
-                    if (currentQty > 0) {
-                        int newStock = productDao.incrementStockAndGet(productId, currentQty);
-                        if (newStock >= 0) updatedStocks.put(productId, newStock);
-                    }
-                } catch (SQLException ex) {
-                    ex.printStackTrace();
-                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                    response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Remove failed")));
+                if (newQty < 0) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Invalid quantity")));
                     return;
                 }
+                update = cartService.setQuantity(userId, productId, newQty);
+
+            } else if ("remove".equals(action)) {
+                productId = Integer.parseInt(request.getParameter("productId"));
+                update = cartService.remove(userId, productId);
 
             } else if ("clear".equals(action)) {
-                List<CartItem> itemsBefore = cartDao.getCartItems(userId);
-                for (CartItem it : itemsBefore) {
-                    int pid = it.getProductId();
-                    int qty = it.getQty();
-                    if (qty > 0) {
-                        int newStock = productDao.incrementStockAndGet(pid, qty);
-                        if (newStock >= 0) updatedStocks.put(pid, newStock);
-                    }
-                }
-                try {
-                    cartDao.clearCart(userId);
-                } catch (SQLException ex) {
-                    ex.printStackTrace();
-                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                    logger.error("Clear cart failed");
-                    response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Clear cart failed")));
+                update = cartService.clear(userId);
+
+            } else if ("applyDeltas".equals(action)) {
+                // deltas={"12":1,"15":-2}: the frontend's batched quantity-stepper clicks
+                Map<Integer, Integer> deltas = parseDeltas(request.getParameter("deltas"));
+                if (deltas == null || deltas.size() > CartService.MAX_LINES) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Invalid deltas")));
                     return;
                 }
+                update = cartService.applyDeltas(userId, deltas);
 
-            } 
-            else {
+            } else {
                 response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                 response.getWriter().print(gson.toJson(Map.of("status", "error", "message", "Unknown action")));
                 return;
             }
 
-            List<CartItem> itemsAfter = cartDao.getCartItems(userId);
+            if (!update.isOk()) {
+                logger.warn("Not enough stock for productId=" + update.getShortProductId());
+                Map<String, Object> fail = new HashMap<>();
+                fail.put("status", "fail");
+                fail.put("message", update.getMessage());
+                fail.put("productId", update.getShortProductId());
+                response.getWriter().print(gson.toJson(fail));
+                return;
+            }
+
+            // DB is committed; keep the cached cart in step (write-through) once the update is over
+            if ("clear".equals(action)) cacheWrite.putEmpty();
+            else cacheWrite.applyLines(update.getLines());
+
+            // only the changed lines plus totals; the full cart is GET /CartServlet
+            for (CartItem line : update.getLines()) {
+                line.setImage(ImageServlet.productImageUrl(request.getContextPath(), line.getProductId(), ImageVariants.Size.THUMB));
+            }
             Map<String, Object> result = new HashMap<>();
             result.put("status", "ok");
-            result.put("items", itemsAfter);
-            if (!updatedStocks.isEmpty()) result.put("updatedStocks", updatedStocks);
+            result.put("lines", update.getLines());
+            Map<String, Object> totals = new HashMap<>();
+            totals.put("itemCount", update.getItemCount());
+            totals.put("totalQty", update.getTotalQty());
+            totals.put("totalAmount", update.getTotalAmount());
+            result.put("totals", totals);
+            if (!update.getUpdatedStocks().isEmpty()) result.put("updatedStocks", update.getUpdatedStocks());
+            if (productId != null && update.getUpdatedStocks().containsKey(productId)) {
+                result.put("newStock", update.getUpdatedStocks().get(productId));
+            }
 
             response.getWriter().print(gson.toJson(result));
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            logger.error("Cart update failed", e);
+            cartCache.invalidate(userId); // the batch may have committed before the failure
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             response.getWriter().print("{\"error\":\"DB error\"}");
         } catch (NumberFormatException e) {
@@ -213,4 +172,22 @@ public class CartServlet extends HttpServlet {
             response.getWriter().print("{\"error\":\"Invalid numeric input\"}");
         }
     }
+
+    /**
+     * {"productId": delta, ...} from the request, or null if malformed.
+     */
+    private Map<Integer, Integer> parseDeltas(String json) {
+        if (json == null || json.isEmpty()) return null;
+        try {
+            JsonObject obj = JsonParser.parseString(json).getAsJsonObject();
+            Map<Integer, Integer> deltas = new HashMap<>();
+            for (Map.Entry<String, JsonElement> e : obj.entrySet()) {
+                int delta = e.getValue().getAsInt();
+                if (delta != 0) deltas.merge(Integer.parseInt(e.getKey()), delta, Integer::sum);
+            }
+            return deltas;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
 }
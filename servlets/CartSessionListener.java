@@ -0,0 +1,38 @@
+package servlets;
+
+import javax.servlet.annotation.WebListener;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import dao.CartCache;
+import model.User;
+
+/**
+ * Drops the cached cart when a session ends, whether by logout or by timeout.
+ */
+@WebListener
+public class CartSessionListener implements HttpSessionListener {
+
+    @Override
+    public void sessionCreated(HttpSessionEvent se) {
+    }
+
+    @Override
+    public void sessionDestroyed(HttpSessionEvent se) {
+        Integer userId = userIdOf(se.getSession());
+        if (userId != null) CartCache.getInstance().invalidate(userId);
+    }
+
+    static Integer userIdOf(HttpSession session) {
+        try {
+            Object id = session.getAttribute("userId");
+            if (id instanceof Integer) return (Integer) id;
+            Object user = session.getAttribute("user");
+            if (user instanceof User) return ((User) user).getId();
+        } catch (IllegalStateException alreadyInvalidated) {
+            // attributes are gone once the session is invalid
+        }
+        return null;
+    }
+}
@@ -0,0 +1,190 @@
+package servlets;
+
+import org.apache.log4j.Logger;
+
+import utils.LoggerUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs PaymentServlet checkouts off the container's request threads, so a burst of
+ * checkouts (each a multi-statement JDBC transaction) cannot take every request thread
+ * away from product browsing.
+ *
+ * At most checkout.workers checkouts run at once, kept below db.pool.maxSize so browsing
+ * still gets connections; up to checkout.queue more wait. Beyond that submit() refuses and
+ * the servlet answers 429. Virtual threads are used when the JVM has them (21+), otherwise
+ * a fixed pool of checkout.workers threads.
+ *
+ * Each checkout records how long its stages took (Timing); the totals are in stats().
+ */
+class CheckoutExecutor {
+
+    private static final Logger logger = LoggerUtil.getLogger(CheckoutExecutor.class);
+
+    private static final int WORKERS = Math.max(1, Integer.getInteger("checkout.workers", 8));
+    private static final int QUEUE = Math.max(0, Integer.getInteger("checkout.queue", 100));
+
+    /** PaymentServlet's AsyncContext timeout. */
+    static final long ASYNC_TIMEOUT_MILLIS = Long.getLong("checkout.asyncTimeoutMs", 30_000L);
+
+    private static volatile CheckoutExecutor instance;
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore running = new Semaphore(WORKERS);
+    // running + waiting
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Map<String, StageStats> stages = new ConcurrentHashMap<>();
+
+    private CheckoutExecutor() {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread t = new Thread(r, "checkout");
+            t.setDaemon(true);
+            return t;
+        });
+        logger.info("Checkout executor: " + WORKERS + " workers, queue " + QUEUE
+                + (virtualThreads ? ", virtual threads" : ", platform threads"));
+    }
+
+    static CheckoutExecutor getInstance() {
+        CheckoutExecutor e = instance;
+        if (e == null) {
+            synchronized (CheckoutExecutor.class) {
+                e = instance;
+                if (e == null) e = instance = new CheckoutExecutor();
+            }
+        }
+        return e;
+    }
+
+    static synchronized void shutdown() {
+        CheckoutExecutor e = instance;
+        instance = null;
+        if (e != null) e.executor.shutdown();
+    }
+
+    /**
+     * Queue a checkout. False when checkout.workers are busy and checkout.queue more are
+     * already waiting.
+     */
+    boolean submit(Runnable task) {
+        if (admitted.incrementAndGet() > WORKERS + QUEUE) {
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                // a virtual thread per task is unbounded, so the permit is what limits concurrency
+                running.acquireUninterruptibly();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Checkout task failed", e);
+                } finally {
+                    running.release();
+                    admitted.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("workers", WORKERS);
+        m.put("queueCapacity", QUEUE);
+        m.put("virtualThreads", virtualThreads);
+        m.put("running", WORKERS - running.availablePermits());
+        m.put("waiting", Math.max(0, admitted.get() - (WORKERS - running.availablePermits())));
+        m.put("submitted", submitted.get());
+        m.put("rejected", rejected.get());
+        Map<String, Object> s = new LinkedHashMap<>();
+        for (Map.Entry<String, StageStats> e : stages.entrySet()) s.put(e.getKey(), e.getValue().toMap());
+        m.put("stages", s);
+        return m;
+    }
+
+    private void record(String stage, long nanos) {
+        stages.computeIfAbsent(stage, k -> new StageStats()).add(nanos);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stage timer of one checkout. Each mark() closes the stage running since the previous
+     * mark (or since the timer was created).
+     */
+    final class Timing {
+        private final StringBuilder serverTiming = new StringBuilder();
+        private long last;
+
+        Timing(long startNanos) {
+            this.last = startNanos;
+        }
+
+        void mark(String stage) {
+            long now = System.nanoTime();
+            long nanos = now - last;
+            last = now;
+            record(stage, nanos);
+            if (serverTiming.length() > 0) serverTiming.append(", ");
+            serverTiming.append(stage).append(";dur=").append(Math.round(nanos / 10_000.0) / 100.0);
+        }
+
+        /** Value for a Server-Timing response header. */
+        String header() {
+            return serverTiming.toString();
+        }
+    }
+
+    Timing timing(long startNanos) {
+        return new Timing(startNanos);
+    }
+
+    private static final class StageStats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            long c = count.get();
+            m.put("count", c);
+            m.put("avgMs", c == 0 ? 0.0 : Math.round(totalNanos.get() / (double) c / 10_000.0) / 100.0);
+            m.put("maxMs", Math.round(maxNanos.get() / 10_000.0) / 100.0);
+            return m;
+        }
+    }
+}
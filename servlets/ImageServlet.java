@@ -1,53 +1,96 @@
 package servlets;
 
+import dao.ImageCache;
+import dao.ImageVariants;
 import utils.DBUtils;
+import utils.TtlCache;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * ImageServlet - tailored to the schema you provided.
  *
  * Usage examples:
  *  - /Ecommerce_Website/ImageServlet?productId=123           -> serves primary image or blob/text image from M_S_DATAS
+ *  - /Ecommerce_Website/ImageServlet?productId=123&size=thumb -> resized variant (thumb|card|detail) of the uploaded image
  *  - /Ecommerce_Website/ImageServlet?productId=123&all=1     -> returns first image (primary) — you can extend to return gallery JSON
  *  - /Ecommerce_Website/ImageServlet?imgId=456               -> serve from M_S_PRODUCT_IMAGES by id
  *  - /Ecommerce_Website/ImageServlet?path=Assets/foo.jpg     -> serve local file under webapp or real path
- *  - /Ecommerce_Website/ImageServlet?url=https://...         -> proxy remote image (caution: security)
+ *  - /Ecommerce_Website/ImageServlet?url=https://...         -> proxy remote image via RemoteImageProxy (async, disk cached)
+ *
+ * Every image carries an ETag and, where the source has a time, Last-Modified; a request whose
+ * If-None-Match / If-Modified-Since still matches gets a 304. For DB images the validators were
+ * stored when the bytes were written (see ImageVariants), so a 304 never reads the BLOB.
  *
  * Notes:
  *  - The servlet expects these tables (from your DDL): Ecommerce_Website.M_S_DATAS (image column or BLOB)
  *    and Ecommerce_Website.M_S_PRODUCT_IMAGES (product_id, image_path, is_primary).
  *  - If your actual column names differ, update the SQL strings below accordingly.
  */
-@WebServlet("/ImageServlet")
+@WebServlet(urlPatterns = "/ImageServlet", asyncSupported = true)
 public class ImageServlet extends HttpServlet {
     private static final int BUFFER_SIZE = 8 * 1024;
     private static final long CACHE_SECONDS = 60 * 60 * 24; // 1 day cache
 
+    // Tomcat's sendfile contract (see org.apache.catalina.Globals)
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+    private static final long[] UNSATISFIABLE = new long[0];
+    private static final String PROXIED_URL = ImageServlet.class.getName() + ".proxiedUrl";
+
+    private volatile byte[] placeholder;
+
+    private final TtlCache<String, ResolvedPath> resolvedPaths = new TtlCache<>("imagePaths",
+            Integer.getInteger("image.pathCache.maxEntries", 2048), Long.getLong("image.pathCache.ttlMs", 60_000L));
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        if (req.getDispatcherType() == DispatcherType.ASYNC && req.getAttribute(PROXIED_URL) != null) {
+            // back from a remote fetch: serve what is cached now (fresh, or stale if the fetch failed)
+            Path p = RemoteImageProxy.getInstance().stale((String) req.getAttribute(PROXIED_URL));
+            if (p == null || !serveFile(p.toFile(), req, resp)) sendNotFound(resp);
+            return;
+        }
+
         String imgId = trim(req.getParameter("imgId"));
         String productId = trim(req.getParameter("productId"));
         String pathParam = trim(req.getParameter("path"));
         String urlParam = trim(req.getParameter("url"));
+        ImageVariants.Size size = ImageVariants.Size.parse(req.getParameter("size"));
 
         // 1) If explicit imgId was provided - try product images table
         if (imgId != null) {
-            if (serveProductImageById(imgId, resp)) return;
+            if (serveProductImageById(imgId, req, resp)) return;
         }
 
-        // 2) If productId provided - try product images table (preferred) then fallback to M_S_DATAS.image
+        // 2) If productId provided - product images table (preferred), then size variant / M_S_DATAS.image
         if (productId != null) {
-            if (servePrimaryImageForProduct(productId, resp)) return;
-            if (serveImageFromProductRow(productId, resp)) return;
+            if (serveCached(productId, size, req, resp)) return;
+            if (serveProduct(productId, size, req, resp)) return;
         }
 
         // 3) explicit path param (local resource or filesystem)
@@ -57,25 +100,44 @@ public class ImageServlet extends HttpServlet {
 
         // 4) proxy remote URL
         if (urlParam != null) {
-            if (serveRemoteUrl(urlParam, resp)) return;
+            if (serveRemoteUrl(urlParam, req, resp)) return;
         }
 
-        // not found -> return 404 with placeholder (try to serve webapp Asset placeholder if present)
+        sendNotFound(resp);
+    }
+
+    // 404 with placeholder (webapp Asset placeholder if present, else empty)
+    private void sendNotFound(HttpServletResponse resp) {
         resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
         resp.setContentType("image/png");
-        try (InputStream is = getServletContext().getResourceAsStream("/Ecommerce_Website/Assets/placeholder.png")) {
-            if (is != null) {
-                copyStream(is, resp.getOutputStream());
-            } else {
-                // return empty 1x1 transparent PNG (minimal fallback)
-                resp.getOutputStream().write(new byte[] {});
-            }
+        try {
+            byte[] body = placeholder();
+            resp.setContentLength(body.length);
+            resp.getOutputStream().write(body);
         } catch (Exception ignored) {}
     }
 
+    // read once; every miss used to open the resource again
+    private byte[] placeholder() throws IOException {
+        byte[] p = placeholder;
+        if (p == null) {
+            try (InputStream is = getServletContext().getResourceAsStream("/Ecommerce_Website/Assets/placeholder.png")) {
+                if (is == null) {
+                    p = new byte[0];
+                } else {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    copyStream(is, bos);
+                    p = bos.toByteArray();
+                }
+            }
+            placeholder = p;
+        }
+        return p;
+    }
+
     // --- Helpers ---
 
-    private boolean serveProductImageById(String imgId, HttpServletResponse resp) {
+    private boolean serveProductImageById(String imgId, HttpServletRequest req, HttpServletResponse resp) {
         String sql = "SELECT image_path FROM Ecommerce_Website.M_S_PRODUCT_IMAGES WHERE id = ?";
         try (Connection conn = DBUtils.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -84,7 +146,7 @@ public class ImageServlet extends HttpServlet {
                 if (rs.next()) {
                     String imagePath = rs.getString("image_path");
                     if (imagePath != null && !imagePath.trim().isEmpty()) {
-                        return serveImageString(imagePath.trim(), resp);
+                        return serveImageString(imagePath.trim(), req, resp);
                     }
                 }
             }
@@ -94,146 +156,357 @@ public class ImageServlet extends HttpServlet {
         return false;
     }
 
-    private boolean servePrimaryImageForProduct(String productId, HttpServletResponse resp) {
-        // Query product images table for primary image
-        String sql = "SELECT TOP 1 image_path FROM Ecommerce_Website.M_S_PRODUCT_IMAGES WHERE product_id = ? AND is_primary = 1 ORDER BY id";
-        try (Connection conn = DBUtils.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, productId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    String path = rs.getString("image_path");
-                    if (path != null && !path.trim().isEmpty()) {
-                        return serveImageString(path.trim(), resp);
-                    }
-                }
+    // DB-sourced product image already in memory; products served from a path are never cached
+    private boolean serveCached(String productId, ImageVariants.Size size, HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        ImageCache.Entry e;
+        try {
+            e = ImageCache.getInstance().get(ImageCache.productKey(Integer.parseInt(productId), size == null ? null : size.param()));
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+        if (e == null) return false;
+        if (notModified(req, resp, e.getEtag(), e.getLastModified())) return true;
+        ByteBuffer data = e.getData();
+        resp.setContentType(e.getContentType());
+        setCacheHeaders(resp, e.getEtag(), e.getLastModified());
+        resp.setContentLength(data.remaining());
+        WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+        while (data.hasRemaining()) out.write(data);
+        return true;
+    }
+
+    /**
+     * Product image resolved with a single query (ImageVariants.resolveProduct): the primary
+     * gallery image, else the size variant (built now if the product has none yet), else the
+     * M_S_DATAS BLOB. Products without any image are remembered briefly in ImageCache.
+     */
+    private boolean serveProduct(String productId, ImageVariants.Size size, HttpServletRequest req, HttpServletResponse resp) {
+        int pid;
+        try {
+            pid = Integer.parseInt(productId);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        ImageCache cache = ImageCache.getInstance();
+        if (cache.isMissing(pid)) return false;
+        // taken before the DB read, so an image read before an invalidation is not cached
+        long gen = cache.generation(pid);
+        try {
+            ImageVariants.ProductImage img = ImageVariants.getInstance().resolveProduct(pid, size, firstEtag(req));
+            if (img == null || img.isEmpty()) {
+                cache.markMissing(pid, gen);
+                return false;
             }
+            if (img.getPrimaryPath() != null) {
+                if (serveImageString(img.getPrimaryPath(), req, resp)) return true;
+                // gallery file is gone: fall back to the uploaded image, as before
+                if (size != null && serveVariant(pid, size, gen, req, resp)) return true;
+                return serveImageFromProductRow(pid, gen, req, resp);
+            }
+            if (img.getVariant() != null) return writeVariant(pid, size, gen, img.getVariant(), req, resp);
+            ImageVariants.Original original = img.getOriginal();
+            if (size != null && original.getData() != null) {
+                ImageVariants.Variant v = ImageVariants.getInstance().generateMissing(pid, size, original.getData());
+                if (v != null) return writeVariant(pid, size, gen, v, req, resp);
+            }
+            return writeOriginal(pid, gen, original, req, resp);
         } catch (SQLException | IOException e) {
-            log("servePrimaryImageForProduct error", e);
+            log("serveProduct error", e);
         }
-        // if not found, return false to allow fallback
         return false;
     }
 
-    private boolean serveImageFromProductRow(String productId, HttpServletResponse resp) {
-        String sqlBlob = "SELECT image FROM Ecommerce_Website.M_S_DATAS WHERE product_id = ?";
-        try (Connection conn = DBUtils.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sqlBlob)) {
-            ps.setString(1, productId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    InputStream bin = rs.getBinaryStream("image");
-                    if (bin != null) {
-                        // Wrap in BufferedInputStream for mark/reset detection
-                        BufferedInputStream bis = new BufferedInputStream(bin);
-                        String ct = detectContentTypeFromStream(bis, "image/jpeg");
-                        writeImageStream(resp, bis, ct);
-                        return true;
-                    }
+    // resized copy of the uploaded M_S_DATAS image; gallery images and paths are served as they are
+    private boolean serveVariant(int productId, ImageVariants.Size size, long gen, HttpServletRequest req, HttpServletResponse resp)
+            throws SQLException, IOException {
+        ImageVariants.Variant v = ImageVariants.getInstance().loadOrGenerate(productId, size, firstEtag(req));
+        return v != null && writeVariant(productId, size, gen, v, req, resp);
+    }
 
-                    // fallback: textual path / URL / data URI
-                    String text = rs.getString("image");
-                    if (text != null && !text.trim().isEmpty()) {
-                        return serveImageString(text.trim(), resp);
-                    }
-                }
-            }
-        } catch (SQLException | IOException e) {
-            log("serveImageFromProductRow error", e);
+    private boolean serveImageFromProductRow(int productId, long gen, HttpServletRequest req, HttpServletResponse resp)
+            throws SQLException, IOException {
+        // the BLOB is only read when the client's etag is not the stored one
+        ImageVariants.Original img = ImageVariants.getInstance().loadOriginal(productId, firstEtag(req));
+        return img != null && writeOriginal(productId, gen, img, req, resp);
+    }
+
+    private boolean writeVariant(int productId, ImageVariants.Size size, long gen, ImageVariants.Variant v,
+                                 HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String etag = strongTag(v.getEtag());
+        if (notModified(req, resp, etag, v.getLastModified())) return true;
+        if (v.getData() == null) return false;
+        ImageCache.getInstance().put(productId, size.param(), gen,
+                v.getData(), v.getContentType(), etag, v.getLastModified());
+        try (InputStream is = new ByteArrayInputStream(v.getData())) {
+            writeImageStream(resp, is, v.getContentType(), etag, v.getLastModified());
+            return true;
         }
-        return false;
+    }
+
+    private boolean writeOriginal(int productId, long gen, ImageVariants.Original img,
+                                  HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (img.getEtag() == null) return false;
+        String etag = strongTag(img.getEtag());
+        if (notModified(req, resp, etag, img.getLastModified())) return true;
+        if (img.getData() == null) return false;
+        // Wrap in BufferedInputStream for mark/reset detection
+        BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(img.getData()));
+        String ct = detectContentTypeFromStream(bis, "image/jpeg");
+        ImageCache.getInstance().put(productId, null, gen, img.getData(), ct, etag, img.getLastModified());
+        writeImageStream(resp, bis, ct, etag, img.getLastModified());
+        return true;
     }
 
 
-    private boolean serveImageString(String val, HttpServletResponse resp) throws IOException {
+    private boolean serveImageString(String val, HttpServletRequest req, HttpServletResponse resp) throws IOException {
         if (val.startsWith("data:")) {
-            return serveDataUri(val, resp);
+            return serveDataUri(val, req, resp);
         }
         if (val.startsWith("http://") || val.startsWith("https://")) {
-            return serveRemoteUrl(val, resp);
+            return serveRemoteUrl(val, req, resp);
         }
         // treat it as a path relative to webapp or absolute path
         // normalize: if it doesn't start with '/', try under /Ecommerce_Website/
         String path = val.startsWith("/") ? val : ("/Ecommerce_Website/" + val.replaceAll("^/+", ""));
-        return serveImageByPath(path, null, resp);
+        return serveImageByPath(path, req, resp);
     }
 
-    private boolean serveImageByPath(String pathParam, HttpServletRequest reqOrNull, HttpServletResponse resp) {
+    private boolean serveImageByPath(String pathParam, HttpServletRequest req, HttpServletResponse resp) {
         try {
             String path = pathParam;
             if (!path.startsWith("/")) path = "/" + path;
 
-            // Try servlet context resource (inside .war)
-            InputStream is = getServletContext().getResourceAsStream(path);
-            if (is != null) {
-                String mime = getServletContext().getMimeType(path);
-                if (mime == null) mime = "application/octet-stream";
-                writeImageStream(resp, is, mime);
-                return true;
+            ResolvedPath resolved = resolvePath(path);
+            if (resolved.file != null) {
+                if (resolved.file.isFile()) return serveFile(resolved.file, req, resp);
+                // deleted or replaced since it was resolved
+                resolvedPaths.remove(path);
+                resolved = resolvePath(path);
+                if (resolved.file != null) return serveFile(resolved.file, req, resp);
+            }
+
+            // servlet context resource that is not a plain file (e.g. inside a packed .war)
+            if (resolved.resource != null) {
+                URLConnection uc = resolved.resource.openConnection();
+                long lastModified = uc.getLastModified();
+                String etag = weakTag(uc.getContentLengthLong(), lastModified);
+                try (InputStream is = uc.getInputStream()) {
+                    if (notModified(req, resp, etag, lastModified)) return true;
+                    String mime = getServletContext().getMimeType(path);
+                    if (mime == null) mime = "application/octet-stream";
+                    writeImageStream(resp, is, mime, etag, lastModified);
+                    return true;
+                }
             }
+        } catch (Exception e) {
+            log("serveImageByPath error", e);
+        }
+        return false;
+    }
+
+    /**
+     * Where a request path lives, from the bounded cache or by probing in the original order:
+     * servlet context resource, absolute file, real path under the webapp, then the real path
+     * with spaces encoded (DB paths sometimes have them). Misses are cached too.
+     */
+    private ResolvedPath resolvePath(String path) throws IOException {
+        ResolvedPath cached = resolvedPaths.get(path);
+        if (cached != null) return cached;
 
-            // Try file system absolute path
+        ResolvedPath resolved = ResolvedPath.MISSING;
+        URL resource = getServletContext().getResource(path);
+        if (resource != null) {
+            resolved = "file".equals(resource.getProtocol())
+                    ? new ResolvedPath(toFile(resource), null)
+                    : new ResolvedPath(null, resource);
+        } else {
             File f = new File(path);
             if (!f.exists()) {
-                // try real path relative to webapp
                 String real = getServletContext().getRealPath(path);
                 if (real != null) f = new File(real);
             }
-            if (f.exists() && f.isFile()) {
-                String mime = getServletContext().getMimeType(f.getName());
-                if (mime == null) mime = "application/octet-stream";
-                try (InputStream fis = new FileInputStream(f)) {
-                    writeImageStream(resp, fis, mime);
-                    return true;
-                }
+            if (f.isFile()) {
+                resolved = new ResolvedPath(f, null);
+            } else {
+                String altReal = getServletContext().getRealPath(path.replaceAll(" ", "%20"));
+                if (altReal != null && new File(altReal).isFile()) resolved = new ResolvedPath(new File(altReal), null);
             }
+        }
+        resolvedPaths.put(path, resolved);
+        return resolved;
+    }
 
-            // Additional attempt: sometimes DB paths include spaces or different casing -> try decode trick
-            String altReal = getServletContext().getRealPath(path.replaceAll(" ", "%20"));
-            if (altReal != null) {
-                File ff = new File(altReal);
-                if (ff.exists() && ff.isFile()) {
-                    String mime = getServletContext().getMimeType(ff.getName());
-                    if (mime == null) mime = "application/octet-stream";
-                    try (InputStream fis = new FileInputStream(ff)) {
-                        writeImageStream(resp, fis, mime);
-                        return true;
-                    }
-                }
+    private static File toFile(URL fileUrl) {
+        try {
+            return new File(fileUrl.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return new File(fileUrl.getPath());
+        }
+    }
+
+    /**
+     * Serve a file without copying it through the heap: via the container's sendfile when it
+     * offers one (Tomcat NIO/APR), else FileChannel.transferTo into the response. Honours a
+     * single Range (206 / 416); multi-range requests get the whole file.
+     */
+    private boolean serveFile(File f, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        long length = f.length();
+        long lastModified = f.lastModified();
+        String etag = weakTag(length, lastModified);
+        if (notModified(req, resp, etag, lastModified)) return true;
+
+        String mime = getServletContext().getMimeType(f.getName());
+        if (mime == null) mime = "application/octet-stream";
+        resp.setContentType(mime);
+        setCacheHeaders(resp, etag, lastModified);
+        resp.setHeader("Accept-Ranges", "bytes");
+
+        long start = 0;
+        long end = length; // exclusive
+        long[] range = requestedRange(req, etag, lastModified, length);
+        if (range == UNSATISFIABLE) {
+            resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            resp.setHeader("Content-Range", "bytes */" + length);
+            resp.setContentLength(0);
+            return true;
+        }
+        if (range != null) {
+            start = range[0];
+            end = range[1];
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+        }
+        resp.setContentLengthLong(end - start);
+
+        // sendfile is only taken up for plain requests, not async dispatches
+        if (req.getDispatcherType() == DispatcherType.REQUEST && Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT))) {
+            req.setAttribute(SENDFILE_FILENAME, f.getCanonicalPath());
+            req.setAttribute(SENDFILE_START, start);
+            req.setAttribute(SENDFILE_END, end);
+            return true;
+        }
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+            long pos = start;
+            while (pos < end) {
+                long n = ch.transferTo(pos, end - pos, out);
+                if (n <= 0) break; // file shrank underneath us
+                pos += n;
             }
-        } catch (Exception e) {
-            log("serveImageByPath error", e);
         }
-        return false;
+        return true;
     }
 
-    private boolean serveRemoteUrl(String remoteUrl, HttpServletResponse resp) {
-        // Proxy remote image (be cautious: may be abused). You can restrict allowed hosts here.
-        HttpURLConnection con = null;
-        try {
-            URL u = new URL(remoteUrl);
-            con = (HttpURLConnection) u.openConnection();
-            con.setConnectTimeout(5000);
-            con.setReadTimeout(10000);
-            con.setInstanceFollowRedirects(true);
-            int code = con.getResponseCode();
-            if (code >= 200 && code < 300) {
-                String ct = con.getContentType();
-                if (ct == null) ct = "application/octet-stream";
-                try (InputStream is = con.getInputStream()) {
-                    writeImageStream(resp, is, ct);
-                    return true;
+    /**
+     * [start, end) of a satisfiable single "Range: bytes=" request, UNSATISFIABLE, or null to
+     * send the whole entity (no/invalid/multi range, or an If-Range that no longer matches).
+     */
+    private static long[] requestedRange(HttpServletRequest req, String etag, long lastModified, long length) {
+        String header = req.getHeader("Range");
+        if (header == null || !header.startsWith("bytes=")) return null;
+        String ifRange = req.getHeader("If-Range");
+        if (ifRange != null) {
+            String v = ifRange.trim();
+            if (v.startsWith("\"") || v.startsWith("W/")) {
+                // weak tags never satisfy If-Range
+                if (etag.startsWith("W/") || !v.equals(etag)) return null;
+            } else {
+                try {
+                    long date = req.getDateHeader("If-Range");
+                    if (date < 0 || lastModified / 1000 != date / 1000) return null;
+                } catch (IllegalArgumentException e) {
+                    return null;
                 }
             }
-        } catch (Exception e) {
-            log("serveRemoteUrl error for " + remoteUrl, e);
-        } finally {
-            if (con != null) con.disconnect();
         }
-        return false;
+        String spec = header.substring("bytes=".length()).trim();
+        if (spec.indexOf(',') >= 0) return null;
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // suffix range: the last N bytes
+                long n = Long.parseLong(last);
+                if (n <= 0) return UNSATISFIABLE;
+                start = Math.max(0, length - n);
+                end = length;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length : Math.min(length, Long.parseLong(last) + 1);
+                if (end <= start && !last.isEmpty() && Long.parseLong(last) < start) return null;
+            }
+            if (start >= length) return UNSATISFIABLE;
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
-    private boolean serveDataUri(String dataUri, HttpServletResponse resp) {
+    /**
+     * Remote image through RemoteImageProxy. A fresh cached copy is served at once; otherwise
+     * the request goes async, the fetch runs without a container thread, and the request is
+     * dispatched back here (see doGet) once the file is cached. 503 when the origin host
+     * already has too many fetches queued and there is no old copy to fall back to.
+     */
+    private boolean serveRemoteUrl(String remoteUrl, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        URI uri = RemoteImageProxy.parse(remoteUrl);
+        if (uri == null) return false;
+        RemoteImageProxy proxy = RemoteImageProxy.getInstance();
+        String url = uri.toString();
+
+        Path fresh = proxy.fresh(url);
+        if (fresh != null) return serveFile(fresh.toFile(), req, resp);
+
+        CompletableFuture<Path> fetch = req.isAsyncSupported() && !req.isAsyncStarted() ? proxy.fetch(uri) : null;
+        if (fetch == null) {
+            Path stale = proxy.stale(url);
+            if (stale != null) return serveFile(stale.toFile(), req, resp);
+            resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            resp.setHeader("Retry-After", "1");
+            return true;
+        }
+
+        AsyncContext ac = req.startAsync();
+        ac.setTimeout(RemoteImageProxy.ASYNC_TIMEOUT_MILLIS);
+        // whichever of fetch completion and timeout comes first owns the response
+        AtomicBoolean finished = new AtomicBoolean();
+        ac.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (finished.compareAndSet(false, true)) {
+                    ((HttpServletResponse) ac.getResponse()).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+                    ac.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                finished.set(true);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        fetch.whenComplete((path, err) -> {
+            if (!finished.compareAndSet(false, true)) return;
+            if (err != null) log("serveRemoteUrl error for " + url, err);
+            ac.getRequest().setAttribute(PROXIED_URL, url);
+            ac.dispatch();
+        });
+        return true;
+    }
+
+    private boolean serveDataUri(String dataUri, HttpServletRequest req, HttpServletResponse resp) {
         try {
             int comma = dataUri.indexOf(',');
             if (comma < 0) return false;
@@ -248,8 +521,11 @@ public class ImageServlet extends HttpServlet {
             } else {
                 bytes = dataPart.getBytes(java.nio.charset.StandardCharsets.UTF_8);
             }
+            // the URI is the content, so hashing it is as good as storing a hash
+            String etag = strongTag(ImageVariants.etagOf(bytes));
+            if (notModified(req, resp, etag, 0L)) return true;
             try (InputStream is = new ByteArrayInputStream(bytes)) {
-                writeImageStream(resp, is, mime);
+                writeImageStream(resp, is, mime, etag, 0L);
                 return true;
             }
         } catch (Exception e) {
@@ -258,11 +534,11 @@ public class ImageServlet extends HttpServlet {
         return false;
     }
 
-    private void writeImageStream(HttpServletResponse resp, InputStream in, String contentType) throws IOException {
+    private void writeImageStream(HttpServletResponse resp, InputStream in, String contentType,
+                                  String etag, long lastModified) throws IOException {
         if (contentType == null || contentType.trim().isEmpty()) contentType = "application/octet-stream";
         resp.setContentType(contentType);
-        resp.setHeader("Cache-Control", "public, max-age=" + CACHE_SECONDS);
-        resp.setDateHeader("Expires", System.currentTimeMillis() + (CACHE_SECONDS * 1000));
+        setCacheHeaders(resp, etag, lastModified);
         try (BufferedInputStream bis = new BufferedInputStream(in);
              BufferedOutputStream bos = new BufferedOutputStream(resp.getOutputStream())) {
             copyStream(bis, bos);
@@ -270,6 +546,69 @@ public class ImageServlet extends HttpServlet {
         }
     }
 
+    private static void setCacheHeaders(HttpServletResponse resp, String etag, long lastModified) {
+        resp.setHeader("Cache-Control", "public, max-age=" + CACHE_SECONDS);
+        resp.setDateHeader("Expires", System.currentTimeMillis() + (CACHE_SECONDS * 1000));
+        if (etag != null) resp.setHeader("ETag", etag);
+        if (lastModified > 0) resp.setDateHeader("Last-Modified", lastModified);
+    }
+
+    /**
+     * Answer 304 (with the validators, no body) when the client's copy is still current.
+     * If-None-Match wins over If-Modified-Since, as in RFC 7232.
+     */
+    private static boolean notModified(HttpServletRequest req, HttpServletResponse resp, String etag, long lastModified) {
+        String inm = req.getHeader("If-None-Match");
+        boolean current;
+        if (inm != null) {
+            current = false;
+            if (etag != null) {
+                String mine = opaqueTag(etag);
+                for (String tag : inm.split(",")) {
+                    String t = tag.trim();
+                    if (t.equals("*") || opaqueTag(t).equals(mine)) {
+                        current = true;
+                        break;
+                    }
+                }
+            }
+        } else {
+            long since = -1;
+            try {
+                since = req.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException ignored) {}
+            // HTTP dates have whole seconds
+            current = since > 0 && lastModified > 0 && lastModified / 1000 <= since / 1000;
+        }
+        if (!current) return false;
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        setCacheHeaders(resp, etag, lastModified);
+        return true;
+    }
+
+    // first tag of If-None-Match without quotes or W/, for matching against a stored hash in SQL
+    private static String firstEtag(HttpServletRequest req) {
+        String inm = req.getHeader("If-None-Match");
+        if (inm == null) return null;
+        int comma = inm.indexOf(',');
+        return opaqueTag(comma < 0 ? inm.trim() : inm.substring(0, comma).trim());
+    }
+
+    private static String opaqueTag(String tag) {
+        String t = tag.startsWith("W/") ? tag.substring(2) : tag;
+        if (t.length() >= 2 && t.startsWith("\"") && t.endsWith("\"")) t = t.substring(1, t.length() - 1);
+        return t;
+    }
+
+    private static String strongTag(String hash) {
+        return "\"" + hash + "\"";
+    }
+
+    // files and resources: size and mtime, like the container's default servlet
+    private static String weakTag(long length, long lastModified) {
+        return "W/\"" + length + "-" + lastModified + "\"";
+    }
+
     private static void copyStream(InputStream in, OutputStream out) throws IOException {
         byte[] buf = new byte[BUFFER_SIZE];
         int r;
@@ -293,4 +632,33 @@ public class ImageServlet extends HttpServlet {
     private String trim(String s) {
         return s == null ? null : s.trim();
     }
+
+    /**
+     * URL the frontend can use as an img src for a product's primary image.
+     */
+    static String productImageUrl(String contextPath, int productId) {
+        return contextPath + "/ImageServlet?productId=" + productId;
+    }
+
+    /**
+     * Same, for a resized variant; use the smallest size the page displays.
+     */
+    static String productImageUrl(String contextPath, int productId, ImageVariants.Size size) {
+        return productImageUrl(contextPath, productId) + "&size=" + size.param();
+    }
+
+    /**
+     * A resolved image path: a file on disk, a non-file servlet context resource, or neither.
+     */
+    private static final class ResolvedPath {
+        static final ResolvedPath MISSING = new ResolvedPath(null, null);
+
+        final File file;
+        final URL resource;
+
+        ResolvedPath(File file, URL resource) {
+            this.file = file;
+            this.resource = resource;
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package servlets;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Helpers for writing JSON responses incrementally instead of building one big String.
+ *
+ * Output is compact; add pretty=1 (or pretty=true) to a request to get indented JSON for debugging.
+ */
+final class JsonStreaming {
+
+    private JsonStreaming() {
+    }
+
+    static JsonWriter writer(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        JsonWriter w = new JsonWriter(resp.getWriter());
+        w.setSerializeNulls(true);
+        if (isPretty(req)) w.setIndent("  ");
+        return w;
+    }
+
+    static boolean isPretty(HttpServletRequest req) {
+        String p = req.getParameter("pretty");
+        return p != null && ("1".equals(p) || "true".equalsIgnoreCase(p));
+    }
+
+    /**
+     * Write each element with Gson directly to the writer, without materialising the whole array as a String.
+     */
+    static <T> void writeArray(Gson gson, JsonWriter w, Iterable<T> items, Type elementType) throws IOException {
+        w.beginArray();
+        if (items != null) {
+            for (T item : items) gson.toJson(item, elementType, w);
+        }
+        w.endArray();
+        w.flush();
+    }
+}
@@ -6,6 +6,7 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 import org.apache.log4j.Logger;
 import com.google.gson.JsonObject;
+import dao.CartCache;
 import utils.LoggerUtil;
 
 @WebServlet("/LogoutServlet")
@@ -22,6 +23,8 @@ public class LogoutServlet extends HttpServlet {
 
         HttpSession session = request.getSession(false);
         if (session != null) {
+            Integer userId = CartSessionListener.userIdOf(session);
+            if (userId != null) CartCache.getInstance().invalidate(userId);
             session.invalidate();
             logger.info("User session invalidated successfully.");
         }
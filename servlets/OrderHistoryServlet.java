@@ -2,6 +2,10 @@ package servlets;
 
 import com.google.gson.Gson;
 import dao.OrderDao;
+import dao.OrderHistoryCache;
+import dao.OrderHistoryDao;
+import model.OrderHistoryPage;
+import model.OrderItem;
 import model.User;
 import utils.LoggerUtil;
 import org.apache.log4j.Logger;
@@ -10,13 +14,24 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.List;
 
+/**
+ * Order history of the logged-in user.
+ *
+ *  - ?limit=20[&after=cursor][&total=1] -> {"items":[order summaries], "nextCursor":..., "total":...}
+ *  - ?orderId=123                       -> the lines of that order, for expanding it
+ *  - no parameters                      -> every order with its lines (legacy)
+ */
 @WebServlet("/OrderHistoryServlet")
 public class OrderHistoryServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
     private static final Logger logger = LoggerUtil.getLogger(OrderHistoryServlet.class);
+    private static final int MAX_PAGE_SIZE = 50;
     private final Gson gson = new Gson();
+    private final OrderHistoryDao historyDao = new OrderHistoryDao();
+    private final OrderHistoryCache cache = OrderHistoryCache.getInstance();
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -34,7 +49,50 @@ public class OrderHistoryServlet extends HttpServlet {
         }
 
         User user = (User) session.getAttribute("user");
+        String orderIdParam = request.getParameter("orderId");
+        String limitParam = request.getParameter("limit");
         try {
+            if (orderIdParam != null && !orderIdParam.isEmpty()) {
+                int orderId;
+                try {
+                    orderId = Integer.parseInt(orderIdParam);
+                } catch (NumberFormatException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    response.getWriter().write("{\"error\":\"Invalid orderId\"}");
+                    return;
+                }
+                List<OrderItem> items = cache.getItems(user.getId(), orderId, historyDao);
+                if (items == null) {
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                    response.getWriter().write("{\"error\":\"Order not found.\"}");
+                    return;
+                }
+                response.getWriter().write(gson.toJson(items));
+                return;
+            }
+
+            if (limitParam != null && !limitParam.isEmpty()) {
+                int limit;
+                try {
+                    limit = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(limitParam)));
+                } catch (NumberFormatException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    response.getWriter().write("{\"error\":\"Invalid limit\"}");
+                    return;
+                }
+                boolean includeTotal = "1".equals(request.getParameter("total")) || "true".equalsIgnoreCase(request.getParameter("total"));
+                OrderHistoryPage page;
+                try {
+                    page = cache.getPage(user.getId(), limit, request.getParameter("after"), includeTotal, historyDao);
+                } catch (IllegalArgumentException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    response.getWriter().write("{\"error\":\"Invalid after cursor\"}");
+                    return;
+                }
+                response.getWriter().write(gson.toJson(page));
+                return;
+            }
+
             String jsonResponse = gson.toJson(OrderDao.getOrderHistory(user.getId()));
             response.getWriter().write(jsonResponse);
         } catch (SQLException e) {
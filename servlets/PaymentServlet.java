@@ -2,9 +2,13 @@ package servlets;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import dao.CartCache;
 import dao.CartDao;
+import dao.CheckoutDao;
 import dao.CouponDao;
-import dao.OrderDao;
+import dao.CouponRules;
+import dao.IdempotencyStore;
+import dao.OrderHistoryCache;
 import model.CartItem;
 import model.DiscountResult;
 import model.Paymentrequest;
@@ -13,6 +17,9 @@ import utils.DBUtils;
 import utils.LoggerUtil;
 import org.apache.log4j.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.*;
@@ -21,15 +28,22 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
-@WebServlet("/PaymentServlet")
+@WebServlet(urlPatterns = "/PaymentServlet", asyncSupported = true)
 public class PaymentServlet extends HttpServlet {
     private static final long serialVersionUID = 1L;
     private final Gson gson = new Gson();
     private final CartDao cartDao = new CartDao();
     private final CouponDao couponDao = new CouponDao();
+    private final IdempotencyStore idempotency = IdempotencyStore.getInstance();
     private static final Logger logger = LoggerUtil.getLogger(PaymentServlet.class);
+    private static final int SC_TOO_MANY_REQUESTS = 429;
 
     @Override
     protected void doGet(HttpServletRequest request, javax.servlet.http.HttpServletResponse response) throws ServletException, IOException {
@@ -135,62 +149,243 @@ public class PaymentServlet extends HttpServlet {
             return;
         }
 
-        List<Integer> selectedProductIds = payReq.getSelectedItems();
-        List<CartItem> itemsInCart;
-        try {
-            itemsInCart = cartDao.getCartItems(userId);
-        } catch (SQLException e) {
-            sendError(response, out, "Database error: " + e.getMessage(), javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        String idemKey = request.getHeader("Idempotency-Key");
+        if (idemKey != null) {
+            idemKey = idemKey.trim();
+            if (idemKey.isEmpty() || idemKey.length() > IdempotencyStore.MAX_KEY_LENGTH) {
+                sendError(response, out, "Invalid Idempotency-Key", javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            CompletableFuture<IdempotencyStore.Response> earlier = idempotency.begin(userId, idemKey);
+            if (earlier != null) {
+                replay(request, response, earlier);
+                return;
+            }
+        }
+        String key = idemKey;
+
+        if (!request.isAsyncSupported()) {
+            CheckoutExecutor.Timing timing = CheckoutExecutor.getInstance().timing(System.nanoTime());
+            writeOutcome(response, runCheckout(userId, payReq, key, timing), timing);
             return;
         }
 
-        List<CartItem> checkoutItems = itemsInCart.stream()
-                .filter(item -> selectedProductIds.contains(item.getProductId()))
-                .collect(Collectors.toList());
+        // the checkout transaction runs on CheckoutExecutor; this request thread goes back to the container
+        AsyncContext ac = request.startAsync();
+        ac.setTimeout(CheckoutExecutor.ASYNC_TIMEOUT_MILLIS);
+        // whichever of the checkout and the async timeout finishes first owns the response
+        AtomicBoolean responded = new AtomicBoolean();
+        ac.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (responded.compareAndSet(false, true)) {
+                    // the transaction may still commit, so the client must not simply retry
+                    sendError((javax.servlet.http.HttpServletResponse) ac.getResponse(), new JsonObject(),
+                            "Checkout is taking longer than expected; check your orders before retrying",
+                            javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    ac.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                responded.set(true);
+            }
 
-        if (checkoutItems.isEmpty()) {
-            sendError(response, out, "No items selected for checkout", javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST);
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        CheckoutExecutor executor = CheckoutExecutor.getInstance();
+        long queuedAt = System.nanoTime();
+        boolean accepted = executor.submit(() -> {
+            CheckoutExecutor.Timing timing = executor.timing(queuedAt);
+            timing.mark("queue");
+            Outcome outcome = runCheckout(userId, payReq, key, timing);
+            if (!responded.compareAndSet(false, true)) {
+                logger.warn("Checkout for user " + userId + " finished after its request timed out: " + outcome.body);
+                return;
+            }
+            try {
+                writeOutcome((javax.servlet.http.HttpServletResponse) ac.getResponse(), outcome, timing);
+            } catch (IOException e) {
+                logger.warn("Could not write checkout response", e);
+            } finally {
+                ac.complete();
+            }
+        });
+        if (!accepted) {
+            Outcome busy = Outcome.error("Too many checkouts in progress, please retry", SC_TOO_MANY_REQUESTS);
+            if (key != null) idempotency.finish(userId, key, busy.toResponse());
+            if (responded.compareAndSet(false, true)) {
+                response.setHeader("Retry-After", "1");
+                response.setStatus(busy.status);
+                response.getWriter().write(busy.body);
+                ac.complete();
+            }
+        }
+    }
+
+    /**
+     * Answer a duplicate of a keyed checkout with the first request's response, waiting for
+     * it (asynchronously where possible) while that one is still running.
+     */
+    private void replay(HttpServletRequest request, javax.servlet.http.HttpServletResponse response,
+                        CompletableFuture<IdempotencyStore.Response> earlier) throws IOException {
+        if (earlier.isDone() || !request.isAsyncSupported()) {
+            try {
+                writeReplay(response, earlier.get(CheckoutExecutor.ASYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendError(response, new JsonObject(), "Checkout interrupted", javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } catch (ExecutionException | TimeoutException e) {
+                sendError(response, new JsonObject(), "Checkout is taking longer than expected; check your orders before retrying",
+                        javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
             return;
         }
+        AsyncContext ac = request.startAsync();
+        ac.setTimeout(CheckoutExecutor.ASYNC_TIMEOUT_MILLIS);
+        AtomicBoolean responded = new AtomicBoolean();
+        ac.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (responded.compareAndSet(false, true)) {
+                    sendError((javax.servlet.http.HttpServletResponse) ac.getResponse(), new JsonObject(),
+                            "Checkout is taking longer than expected; check your orders before retrying",
+                            javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    ac.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                responded.set(true);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        earlier.thenAccept(r -> {
+            if (!responded.compareAndSet(false, true)) return;
+            try {
+                writeReplay((javax.servlet.http.HttpServletResponse) ac.getResponse(), r);
+            } catch (IOException e) {
+                logger.warn("Could not write replayed checkout response", e);
+            } finally {
+                ac.complete();
+            }
+        });
+    }
+
+    private void writeReplay(javax.servlet.http.HttpServletResponse response, IdempotencyStore.Response r) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Idempotent-Replayed", "true");
+        response.setStatus(r.getStatus());
+        response.getWriter().write(r.getBody());
+    }
+
+    // checkout, then the outcome to any duplicates of the key waiting on it
+    private Outcome runCheckout(int userId, Paymentrequest payReq, String key, CheckoutExecutor.Timing timing) {
+        Outcome outcome;
+        try {
+            outcome = checkout(userId, payReq, key, timing);
+        } catch (RuntimeException e) {
+            logger.error("Checkout failed", e);
+            outcome = Outcome.error("Payment failed", javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        if (key != null) idempotency.finish(userId, key, outcome.toResponse());
+        return outcome;
+    }
 
+    /**
+     * The checkout itself: read the cart, reserve the coupon, then create the order and clear
+     * the bought cart lines in one transaction (CheckoutDao, one round trip). Runs on CheckoutExecutor.
+     * With an idempotency key, the key is claimed first in the same transaction; a key that
+     * already placed an order gets that order's response back instead.
+     */
+    private Outcome checkout(int userId, Paymentrequest payReq, String idemKey, CheckoutExecutor.Timing timing) {
         Connection conn = null;
+        // coupon whose usage reservation this checkout holds, handed back in finally
+        Integer reservedCouponId = null;
         try {
             conn = DBUtils.getConnection();
             conn.setAutoCommit(false);
 
+            if (idemKey != null) {
+                IdempotencyStore.Response stored = idempotency.claim(conn, userId, idemKey);
+                timing.mark("key");
+                if (stored != null) {
+                    conn.rollback();
+                    return Outcome.of(stored);
+                }
+            }
+
+            Set<Integer> selectedProductIds = new HashSet<>(payReq.getSelectedItems());
+            List<CartItem> checkoutItems = cartDao.getCartItems(userId).stream()
+                    .filter(item -> selectedProductIds.contains(item.getProductId()))
+                    .collect(Collectors.toList());
+            timing.mark("cart");
+
+            if (checkoutItems.isEmpty()) {
+                conn.rollback();
+                return Outcome.error("No items selected for checkout", javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST);
+            }
+
             double amountRequested = payReq.getAmount();
             double originalAmount = payReq.getOriginalAmount() != null ? payReq.getOriginalAmount() : amountRequested;
             String couponCode = payReq.getCouponCode();
 
             DiscountResult dr = null;
             if (couponCode != null && !couponCode.trim().isEmpty()) {
-                dr = couponDao.validateAndComputeDiscount(conn, couponCode, originalAmount, userId);
+                dr = couponDao.validateAndReserve(conn, couponCode, originalAmount, userId);
                 if (!dr.isValid()) {
                     try { 
                     	conn.rollback(); 
                     	} catch (SQLException ex) { 
                     		logger.warn("Rollback failed", ex); 
                     		}
-                    sendError(response, out, "Coupon invalid: " + dr.getMessage(), javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST);
-                    return;
+                    return Outcome.error("Coupon invalid: " + dr.getMessage(), javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST);
                 }
+                reservedCouponId = dr.getCouponId();
                 amountRequested = dr.getNewAmount();
             }
+            timing.mark("coupon");
 
-            int orderId = OrderDao.createOrder(conn, userId, amountRequested);
-            OrderDao.createOrderLogs(conn, orderId, checkoutItems);
-            OrderDao.clearSelectedCartItems(conn, userId, selectedProductIds);
+            int orderId = CheckoutDao.placeOrder(conn, userId, amountRequested, checkoutItems);
 
             if (dr != null && dr.isValid()) {
-                couponDao.recordCouponUsage(conn, dr.getCouponId(), userId, orderId, originalAmount, dr.getDiscountAmount());
+                if (!couponDao.recordCouponUsage(conn, dr.getCouponId(), userId, orderId, originalAmount, dr.getDiscountAmount())) {
+                    conn.rollback();
+                    return Outcome.error("Coupon invalid: Coupon usage limit reached", javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST);
+                }
             }
 
-            conn.commit();
+            JsonObject out = new JsonObject();
             out.addProperty("status", "ok");
             out.addProperty("orderId", orderId);
             out.addProperty("message", "Payment simulated and order placed for selected items.");
-            response.setStatus(javax.servlet.http.HttpServletResponse.SC_OK);
-            response.getWriter().write(out.toString());
+            Outcome placed = new Outcome(javax.servlet.http.HttpServletResponse.SC_OK, out.toString());
+            if (idemKey != null) idempotency.store(conn, userId, idemKey, placed.toResponse());
+            timing.mark("order");
+
+            conn.commit();
+            timing.mark("commit");
+            CartCache.getInstance().invalidate(userId);
+            CouponRules.getInstance().markOrdered(userId);
+            OrderHistoryCache.getInstance().invalidate(userId);
+            return placed;
         } catch (SQLException e) {
             logger.error("Transaction failed", e);
             if (conn != null) try { 
@@ -198,8 +393,9 @@ public class PaymentServlet extends HttpServlet {
             	} catch (SQLException ex) {
             		logger.error("Rollback failed", ex);
             		}
-            sendError(response, out, "Payment failed: " + e.getMessage(), javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return Outcome.error("Payment failed: " + e.getMessage(), javax.servlet.http.HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         } finally {
+            if (reservedCouponId != null) couponDao.releaseUsage(reservedCouponId);
             if (conn != null) try { 
             	conn.close();
             	} catch (SQLException e) {
@@ -208,10 +404,44 @@ public class PaymentServlet extends HttpServlet {
         }
     }
 
+    private void writeOutcome(javax.servlet.http.HttpServletResponse response, Outcome outcome, CheckoutExecutor.Timing timing) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Server-Timing", timing.header());
+        response.setStatus(outcome.status);
+        response.getWriter().write(outcome.body);
+    }
+
     private void sendError(javax.servlet.http.HttpServletResponse response, JsonObject jsonObject, String message, int statusCode) throws IOException {
         jsonObject.addProperty("status", "error");
         jsonObject.addProperty("message", message);
         response.setStatus(statusCode);
         response.getWriter().write(jsonObject.toString());
     }
+
+    /** Status and JSON body of a finished checkout. */
+    private static final class Outcome {
+        final int status;
+        final String body;
+
+        Outcome(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        static Outcome error(String message, int status) {
+            JsonObject o = new JsonObject();
+            o.addProperty("status", "error");
+            o.addProperty("message", message);
+            return new Outcome(status, o.toString());
+        }
+
+        static Outcome of(IdempotencyStore.Response r) {
+            return new Outcome(r.getStatus(), r.getBody());
+        }
+
+        IdempotencyStore.Response toResponse() {
+            return new IdempotencyStore.Response(status, body);
+        }
+    }
 }
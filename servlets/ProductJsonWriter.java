@@ -0,0 +1,53 @@
+package servlets;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+
+import model.Product;
+
+/**
+ * Writes Product JSON straight to a JsonWriter, replacing the reflection based productToMap.
+ *
+ * Output shape is unchanged: productId, categoryId, productName, description, price, stock,
+ * image (Base64 bytes or imageUrl), images, discountPercent, discountedPrice.
+ */
+final class ProductJsonWriter {
+
+    private ProductJsonWriter() {
+    }
+
+    static void write(JsonWriter w, Product p, List<String> images, double discountPercent) throws IOException {
+        w.beginObject();
+        w.name("productId").value(p.getProductId());
+        w.name("categoryId").value(p.getCategoryId());
+        w.name("productName").value(p.getProductName());
+        w.name("description").value(p.getDescription());
+        w.name("price").value(p.getPrice());
+        w.name("stock").value(p.getStock());
+
+        byte[] data = p.getImageData();
+        if (data != null && data.length > 0) {
+            w.name("image").value(Base64.getEncoder().encodeToString(data));
+        } else if (p.getImageUrl() != null) {
+            w.name("image").value(p.getImageUrl());
+        }
+
+        if (images != null && !images.isEmpty()) {
+            w.name("images").beginArray();
+            for (String img : images) w.value(img);
+            w.endArray();
+        }
+
+        if (discountPercent > 0.0) {
+            w.name("discountPercent").value(discountPercent);
+            double price = p.getPrice();
+            w.name("discountedPrice").value(Math.round((price - (price * discountPercent / 100.0)) * 100.0) / 100.0);
+        } else {
+            w.name("discountPercent").value(0.0);
+        }
+        w.endObject();
+    }
+}
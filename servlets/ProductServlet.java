@@ -2,12 +2,10 @@ package servlets;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Base64;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -17,11 +15,12 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 
+import dao.ImageVariants;
 import dao.ProductDao;
 import model.Product;
+import model.ProductPage;
 import utils.LoggerUtil;
 
 @WebServlet("/ProductServlet")
@@ -30,16 +29,13 @@ public class ProductServlet extends HttpServlet {
 
     private static final Logger logger = LoggerUtil.getLogger(ProductServlet.class);
 
+    private static final int MAX_PAGE_SIZE = 100;
+
     private ProductDao productDao;
-    private Gson gson;
 
     @Override
     public void init() throws ServletException {
         this.productDao = new ProductDao();
-        this.gson = new GsonBuilder()
-                .serializeNulls()
-                .setPrettyPrinting()
-                .create();
     }
 
     @Override
@@ -56,6 +52,7 @@ public class ProductServlet extends HttpServlet {
         String categoryIdParam = request.getParameter("category_id");
         String query = request.getParameter("query");
         String filter = request.getParameter("filter");
+        String limitParam = request.getParameter("limit");
 
         try {
             if (productIdParam != null && !productIdParam.isEmpty()) {
@@ -73,35 +70,21 @@ public class ProductServlet extends HttpServlet {
                     out.print("{}");
                     return;
                 }
+                prod.setImageUrl(ImageServlet.productImageUrl(request.getContextPath(), pid, ImageVariants.Size.DETAIL));
 
-                Map<String, Object> map = productToMap(prod);
+                // the page prefers "images": give it the detail variant URL, never the inlined original BLOB
+                List<String> imgs = Collections.singletonList(prod.getImageUrl());
 
+                double disc = 0.0;
                 try {
-                    List<String> imgs = productDao.getImagesForProduct(pid);
-                    if (imgs != null && !imgs.isEmpty()) {
-                        map.put("images", imgs);
-                    }
-                } catch (Exception t) {
-                    logger.debug("getImagesForProduct failed", t);
-                }
-
-                try {
-                    double disc = productDao.getActiveDiscountPercent(pid);
-                    if (disc > 0.0) {
-                        map.put("discountPercent", disc);
-                        Double price = toDoubleSafe(map.get("price"));
-                        if (price != null) {
-                            double dp = Math.round((price - (price * disc / 100.0)) * 100.0) / 100.0;
-                            map.put("discountedPrice", dp);
-                        }
-                    } else {
-                        map.put("discountPercent", 0.0);
-                    }
+                    disc = productDao.getActiveDiscountPercent(pid);
                 } catch (Exception t) {
                     logger.debug("getActiveDiscountPercent failed", t);
                 }
 
-                out.print(gson.toJson(map));
+                JsonWriter w = JsonStreaming.writer(request, response);
+                ProductJsonWriter.write(w, prod, imgs, disc);
+                w.flush();
                 return;
             }
 
@@ -121,42 +104,41 @@ public class ProductServlet extends HttpServlet {
                 query = query.trim().replaceAll("[^a-zA-Z0-9 ]", "");
             }
 
-            List<Product> products = productDao.getFilteredProducts(categoryId, query, filter);
-            List<Map<String, Object>> outList = new ArrayList<>(products.size());
-
-            for (Product p : products) {
-                Map<String, Object> map = productToMap(p);
-                final Integer pid = (Integer) map.get("productId");
-
+            if (limitParam != null && !limitParam.isEmpty()) {
+                // paged mode: {"items":[...], "nextCursor":..., "total":...}
+                int limit;
                 try {
-                    List<String> imgs = productDao.getImagesForProduct(pid);
-                    if (imgs != null && !imgs.isEmpty()) {
-                        map.put("images", imgs);
-                    }
-                } catch (Exception t) {
-                    logger.debug("getImagesForProduct failed for pid=" + pid, t);
+                    limit = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(limitParam)));
+                } catch (NumberFormatException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    out.print("{\"error\":\"Invalid limit\"}");
+                    return;
                 }
-
+                boolean includeTotal = "1".equals(request.getParameter("total")) || "true".equalsIgnoreCase(request.getParameter("total"));
+                ProductPage page;
                 try {
-                    double disc = productDao.getActiveDiscountPercent(pid);
-                    if (disc > 0.0) {
-                        map.put("discountPercent", disc);
-                        Double price = toDoubleSafe(map.get("price"));
-                        if (price != null) {
-                            double dp = Math.round((price - (price * disc / 100.0)) * 100.0) / 100.0;
-                            map.put("discountedPrice", dp);
-                        }
-                    } else {
-                        map.put("discountPercent", 0.0);
-                    }
-                } catch (Exception t) {
-                    logger.debug("getActiveDiscountPercent failed for pid=" + pid, t);
+                    page = productDao.getProductPage(categoryId, query, filter, limit, request.getParameter("after"), includeTotal);
+                } catch (IllegalArgumentException e) {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    out.print("{\"error\":\"Invalid after cursor\"}");
+                    return;
                 }
 
-                outList.add(map);
+                JsonWriter w = JsonStreaming.writer(request, response);
+                w.beginObject();
+                w.name("items");
+                writeListing(w, page.getItems(), request);
+                w.name("nextCursor").value(page.getNextCursor());
+                if (page.getTotal() != null) w.name("total").value(page.getTotal());
+                w.endObject();
+                w.flush();
+                return;
             }
 
-            out.print(gson.toJson(outList));
+            List<Product> products = productDao.getFilteredProducts(categoryId, query, filter);
+            JsonWriter w = JsonStreaming.writer(request, response);
+            writeListing(w, products, request);
+            w.flush();
         } catch (Exception ex) {
             logger.error("ProductServlet error", ex);
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -166,114 +148,33 @@ public class ProductServlet extends HttpServlet {
         }
     }
 
-    @Override
-    protected void doPost(HttpServletRequest request,
-                          HttpServletResponse response)
-            throws ServletException, IOException {
-        doGet(request, response);
-    }
-
-    private Map<String, Object> productToMap(Product p) {
-        Map<String, Object> m = new LinkedHashMap<>();
-        try {
-            m.put("productId", safeGetInt(p, "getProductId", "getProduct_id"));
-            m.put("categoryId", safeGetInt(p, "getCategoryId", "getCategory_id", "getCatId"));
-            m.put("productName", safeGetString(p, "getProductName", "getProduct_name", "getName"));
-            m.put("description", safeGetString(p, "getDescription", "getDesc"));
-            m.put("price", safeGetDouble(p, "getPrice", "getProductPrice"));
-            m.put("stock", safeGetIntOrNull(p, "getStock", "getQty"));
-
-            // image handling: prefer getImageBase64(), then getImageData() byte[], then legacy string getters
-            String imageBase64 = getImageBase64FromProduct(p);
-            if (imageBase64 != null) {
-                m.put("image", imageBase64);
-            } else {
-                String image = safeGetString(p, "getImageUrl", "getImage", "getImg");
-                if (image != null) {
-                    m.put("image", image);
-                }
-            }
-        } catch (Exception e) {
-            logger.debug("productToMap reflection issue", e);
-        }
-        return m;
-    }
-
-    private String getImageBase64FromProduct(Product p) {
-        try {
-            Method m = p.getClass().getMethod("getImageBase64");
-            Object v = m.invoke(p);
-            if (v instanceof String) {
-                String s = (String) v;
-                if (!s.isEmpty()) return s;
-            }
-        } catch (NoSuchMethodException ignored) {}
-        catch (Exception ex) { logger.debug("getImageBase64 invoke failed", ex); }
+    private void writeListing(JsonWriter w, List<Product> products, HttpServletRequest request) throws IOException {
+        List<Integer> ids = new ArrayList<>(products.size());
+        for (Product p : products) ids.add(p.getProductId());
 
+        Map<Integer, Double> discountsById = Collections.emptyMap();
         try {
-            Method m = p.getClass().getMethod("getImageData");
-            Object v = m.invoke(p);
-            if (v instanceof byte[]) {
-                byte[] b = (byte[]) v;
-                if (b != null && b.length > 0) {
-                    return Base64.getEncoder().encodeToString(b);
-                }
-            }
-        } catch (NoSuchMethodException ignored) {}
-        catch (Exception ex) { logger.debug("getImageData invoke failed", ex); }
-
-        return null;
-    }
-
-    private Integer safeGetInt(Product p, String... methods) {
-        for (String m : methods) {
-            try {
-                Method method = p.getClass().getMethod(m);
-                Object v = method.invoke(p);
-                if (v instanceof Number) return ((Number) v).intValue();
-                if (v instanceof String) {
-                    try { return Integer.parseInt((String) v); } catch (NumberFormatException ignored) {}
-                }
-            } catch (NoSuchMethodException ns) { continue; }
-            catch (Exception ex) { logger.debug("safeGetInt invoke failed for " + m, ex); }
+            discountsById = productDao.getActiveDiscountPercents(ids);
+        } catch (Exception t) {
+            logger.debug("getActiveDiscountPercents failed", t);
         }
-        return null;
-    }
-
-    private Integer safeGetIntOrNull(Product p, String... methods) {
-        return safeGetInt(p, methods);
-    }
 
-    private Double safeGetDouble(Product p, String... methods) {
-        for (String m : methods) {
-            try {
-                Method method = p.getClass().getMethod(m);
-                Object v = method.invoke(p);
-                if (v instanceof Number) return ((Number) v).doubleValue();
-                if (v instanceof String) {
-                    try { return Double.parseDouble((String) v); } catch (NumberFormatException ignored) {}
-                }
-            } catch (NoSuchMethodException ns) { continue; }
-            catch (Exception ex) { logger.debug("safeGetDouble invoke failed for " + m, ex); }
+        w.beginArray();
+        for (Product p : products) {
+            int pid = p.getProductId();
+            // list rows carry no image bytes; the browser fetches them from ImageServlet
+            String imageUrl = ImageServlet.productImageUrl(request.getContextPath(), pid, ImageVariants.Size.CARD);
+            p.setImageUrl(imageUrl);
+            Double disc = discountsById.get(pid);
+            ProductJsonWriter.write(w, p, Collections.singletonList(imageUrl), disc != null ? disc : 0.0);
         }
-        return null;
+        w.endArray();
     }
 
-    private String safeGetString(Product p, String... methods) {
-        for (String m : methods) {
-            try {
-                Method method = p.getClass().getMethod(m);
-                Object v = method.invoke(p);
-                if (v != null) return String.valueOf(v);
-            } catch (NoSuchMethodException ns) { continue; }
-            catch (Exception ex) { logger.debug("safeGetString invoke failed for " + m, ex); }
-        }
-        return null;
-    }
-
-    private Double toDoubleSafe(Object o) {
-        if (o == null) return null;
-        if (o instanceof Number) return ((Number) o).doubleValue();
-        try { return Double.parseDouble(String.valueOf(o)); } catch (Exception e) { return null; }
+    @Override
+    protected void doPost(HttpServletRequest request,
+                          HttpServletResponse response)
+            throws ServletException, IOException {
+        doGet(request, response);
     }
 }
@@ -0,0 +1,489 @@
+package servlets;
+
+import org.apache.log4j.Logger;
+
+import utils.LoggerUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches remote images for ImageServlet (?url= and http(s) image paths stored in the DB)
+ * without holding a request thread, and keeps them in a disk cache.
+ *
+ * Fetches go through java.net.http asynchronously, at most image.proxy.perHostConcurrency
+ * at a time per origin host with up to image.proxy.perHostQueue more waiting; beyond that
+ * fetch() refuses, so one slow origin cannot pile up work. Concurrent requests for the same
+ * URL share one fetch.
+ *
+ * Fetched images are stored under image.proxy.cacheDir as sha256(url).ext and served from
+ * there as plain files. They are fresh for image.proxy.ttlMs; an expired copy is still used
+ * when refetching fails. The directory is kept under image.proxy.cacheMb, oldest fetch
+ * evicted first. Only common image types up to image.proxy.maxObjectKb are accepted; bodies
+ * are streamed to a temp file and the exchange is cancelled as soon as they pass the limit,
+ * whether or not the origin sent a Content-Length.
+ */
+class RemoteImageProxy {
+
+    private static final Logger logger = LoggerUtil.getLogger(RemoteImageProxy.class);
+
+    private static final int PER_HOST = Math.max(1, Integer.getInteger("image.proxy.perHostConcurrency", 4));
+    private static final int PER_HOST_QUEUE = Integer.getInteger("image.proxy.perHostQueue", 64);
+    private static final long TTL_MILLIS = Long.getLong("image.proxy.ttlMs", 24 * 60 * 60_000L);
+    private static final long CACHE_BYTES = Long.getLong("image.proxy.cacheMb", 256L) * 1024 * 1024;
+    private static final long MAX_OBJECT_BYTES = Long.getLong("image.proxy.maxObjectKb", 10 * 1024L) * 1024;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    /** ImageServlet's AsyncContext timeout: the fetch timeouts plus some slack. */
+    static final long ASYNC_TIMEOUT_MILLIS = 20_000L;
+
+    // content types we cache, with the extension that lets the container name the type again
+    private static final Map<String, String> EXTENSIONS = new LinkedHashMap<>();
+    static {
+        EXTENSIONS.put("image/jpeg", ".jpg");
+        EXTENSIONS.put("image/png", ".png");
+        EXTENSIONS.put("image/gif", ".gif");
+        EXTENSIONS.put("image/webp", ".webp");
+        EXTENSIONS.put("image/avif", ".avif");
+        EXTENSIONS.put("image/svg+xml", ".svg");
+        EXTENSIONS.put("image/bmp", ".bmp");
+        EXTENSIONS.put("image/x-icon", ".ico");
+        EXTENSIONS.put("image/vnd.microsoft.icon", ".ico");
+    }
+
+    private static volatile RemoteImageProxy instance;
+
+    private final Path dir;
+    private final ExecutorService executor;
+    private final HttpClient client;
+
+    // url hash -> cached file, so lookups don't probe the directory
+    private final Map<String, Path> index = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, HostLimiter> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private RemoteImageProxy(Path dir) {
+        this.dir = dir;
+        this.executor = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "image-proxy");
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+        loadIndex();
+    }
+
+    static RemoteImageProxy getInstance() {
+        RemoteImageProxy p = instance;
+        if (p == null) {
+            synchronized (RemoteImageProxy.class) {
+                p = instance;
+                if (p == null) {
+                    String configured = System.getProperty("image.proxy.cacheDir");
+                    Path dir = configured != null
+                            ? Paths.get(configured)
+                            : Paths.get(System.getProperty("java.io.tmpdir"), "ecommerce-image-proxy");
+                    p = instance = new RemoteImageProxy(dir);
+                }
+            }
+        }
+        return p;
+    }
+
+    static synchronized void shutdown() {
+        RemoteImageProxy p = instance;
+        instance = null;
+        if (p != null) p.executor.shutdownNow();
+    }
+
+    /**
+     * Only absolute http(s) URLs with a host are proxied.
+     */
+    static URI parse(String url) {
+        try {
+            URI uri = new URI(url);
+            String scheme = uri.getScheme();
+            if (uri.getHost() == null || scheme == null) return null;
+            if (!scheme.equalsIgnoreCase("http") && !scheme.equalsIgnoreCase("https")) return null;
+            return uri;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Cached copy of the URL within its TTL, or null.
+     */
+    Path fresh(String url) {
+        Path p = index.get(key(url));
+        if (p == null) return null;
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(p).toMillis() < TTL_MILLIS) {
+                hits.incrementAndGet();
+                return p;
+            }
+        } catch (IOException e) {
+            index.remove(key(url), p);
+        }
+        return null;
+    }
+
+    /**
+     * Any cached copy of the URL, however old, or null.
+     */
+    Path stale(String url) {
+        Path p = index.get(key(url));
+        return p != null && Files.isRegularFile(p) ? p : null;
+    }
+
+    /**
+     * Fetch the URL into the cache. The future completes with the cached file, or
+     * exceptionally when the origin fails or sends something that is not an acceptable image.
+     * Null when the origin host already has a full queue.
+     */
+    CompletableFuture<Path> fetch(URI uri) {
+        String url = uri.toString();
+        CompletableFuture<Path> existing = inFlight.get(url);
+        if (existing != null) return existing;
+
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        existing = inFlight.putIfAbsent(url, result);
+        if (existing != null) return existing;
+        result.whenComplete((p, e) -> inFlight.remove(url, result));
+
+        HostLimiter limiter = hosts.computeIfAbsent(uri.getHost().toLowerCase(Locale.ROOT), h -> new HostLimiter());
+        boolean accepted = limiter.submit(() -> {
+            try {
+                fetches.incrementAndGet();
+                HttpRequest request = HttpRequest.newBuilder(uri)
+                        .timeout(REQUEST_TIMEOUT)
+                        .header("Accept", "image/*")
+                        .GET()
+                        .build();
+                String key = key(url);
+                client.sendAsync(request, info -> bodyHandler(info, key))
+                        .thenApply(response -> store(url, response))
+                        .whenComplete((p, e) -> {
+                            limiter.release();
+                            if (e != null) {
+                                failures.incrementAndGet();
+                                result.completeExceptionally(e);
+                            } else {
+                                result.complete(p);
+                            }
+                        });
+            } catch (RuntimeException e) {
+                limiter.release();
+                failures.incrementAndGet();
+                result.completeExceptionally(e);
+            }
+        });
+        if (!accepted) {
+            rejected.incrementAndGet();
+            inFlight.remove(url, result);
+            return null;
+        }
+        return result;
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("files", index.size());
+        m.put("bytes", diskBytes.get());
+        m.put("maxBytes", CACHE_BYTES);
+        m.put("hits", hits.get());
+        m.put("fetches", fetches.get());
+        m.put("failures", failures.get());
+        m.put("rejected", rejected.get());
+        m.put("evictions", evictions.get());
+        m.put("inFlight", inFlight.size());
+        return m;
+    }
+
+    // bodies we are going to refuse are discarded unread; the rest go to a temp file
+    private HttpResponse.BodySubscriber<Path> bodyHandler(HttpResponse.ResponseInfo info, String key) {
+        long declared = info.headers().firstValueAsLong("Content-Length").orElse(-1L);
+        if (info.statusCode() / 100 != 2 || declared > MAX_OBJECT_BYTES || extension(info.headers()) == null) {
+            return HttpResponse.BodySubscribers.replacing(null);
+        }
+        try {
+            return new LimitedFileSubscriber(Files.createTempFile(dir, key, ".tmp"), MAX_OBJECT_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path store(String url, HttpResponse<Path> response) {
+        Path tmp = response.body();
+        if (tmp == null) {
+            if (response.statusCode() / 100 != 2) {
+                throw new IllegalStateException("Origin answered " + response.statusCode() + " for " + url);
+            }
+            String ext = extension(response.headers());
+            throw new IllegalStateException(ext == null
+                    ? "Not an image (" + response.headers().firstValue("Content-Type").orElse("") + ") at " + url
+                    : "Image too large at " + url);
+        }
+
+        String key = key(url);
+        Path target = dir.resolve(key + extension(response.headers()));
+        try {
+            long size = Files.size(tmp);
+            Path old = index.get(key);
+            long oldSize = old != null && Files.isRegularFile(old) ? Files.size(old) : 0L;
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // the content type (so the extension) may have changed
+            if (old != null && !old.equals(target)) Files.deleteIfExists(old);
+            index.put(key, target);
+            diskBytes.addAndGet(size - oldSize);
+        } catch (IOException e) {
+            deleteQuietly(tmp);
+            throw new IllegalStateException("Could not cache " + url, e);
+        }
+        if (diskBytes.get() > CACHE_BYTES) evict();
+        return target;
+    }
+
+    // oldest fetches first, down to 90% of the cap
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) return;
+        try {
+            List<Map.Entry<String, Path>> entries = new ArrayList<>(index.entrySet());
+            Map<Path, Long> modified = new LinkedHashMap<>();
+            for (Map.Entry<String, Path> e : entries) {
+                try {
+                    modified.put(e.getValue(), Files.getLastModifiedTime(e.getValue()).toMillis());
+                } catch (IOException ex) {
+                    modified.put(e.getValue(), 0L);
+                }
+            }
+            entries.sort((a, b) -> Long.compare(modified.get(a.getValue()), modified.get(b.getValue())));
+            long target = CACHE_BYTES / 10 * 9;
+            for (Map.Entry<String, Path> e : entries) {
+                if (diskBytes.get() <= target) break;
+                try {
+                    long size = Files.size(e.getValue());
+                    if (index.remove(e.getKey(), e.getValue()) && Files.deleteIfExists(e.getValue())) {
+                        diskBytes.addAndGet(-size);
+                        evictions.incrementAndGet();
+                    }
+                } catch (IOException ex) {
+                    logger.warn("Could not evict " + e.getValue(), ex);
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private void loadIndex() {
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path p : files) {
+                    String name = p.getFileName().toString();
+                    if (name.endsWith(".tmp")) {
+                        Files.deleteIfExists(p);
+                        continue;
+                    }
+                    int dot = name.indexOf('.');
+                    if (dot != 64 || !Files.isRegularFile(p)) continue;
+                    index.put(name.substring(0, dot), p);
+                    diskBytes.addAndGet(Files.size(p));
+                }
+            }
+            logger.info("Image proxy cache at " + dir + ": " + index.size() + " files, " + diskBytes.get() + " bytes");
+        } catch (IOException e) {
+            logger.error("Image proxy cache directory " + dir + " is not usable", e);
+        }
+    }
+
+    // file extension for the response's content type, null when it is not an image we cache
+    private static String extension(HttpHeaders headers) {
+        String type = headers.firstValue("Content-Type").orElse("");
+        int semi = type.indexOf(';');
+        if (semi >= 0) type = type.substring(0, semi);
+        return EXTENSIONS.get(type.trim().toLowerCase(Locale.ROOT));
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            logger.warn("Could not delete " + p, e);
+        }
+    }
+
+    private static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : digest) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a response body to a file, cancelling the exchange and deleting the file once
+     * more than maxBytes have arrived. Completes with the file, or exceptionally.
+     */
+    private static final class LimitedFileSubscriber implements HttpResponse.BodySubscriber<Path> {
+        private final Path file;
+        private final long maxBytes;
+        private final CompletableFuture<Path> body = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private FileChannel channel;
+        private long written;
+
+        LimitedFileSubscriber(Path file, long maxBytes) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public CompletionStage<Path> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException e) {
+                s.cancel();
+                fail(e);
+                return;
+            }
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (body.isDone()) return;
+            try {
+                for (ByteBuffer b : buffers) {
+                    written += b.remaining();
+                    if (written > maxBytes) {
+                        subscription.cancel();
+                        fail(new IOException("Image larger than " + maxBytes + " bytes"));
+                        return;
+                    }
+                    while (b.hasRemaining()) channel.write(b);
+                }
+            } catch (IOException e) {
+                subscription.cancel();
+                fail(e);
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            fail(t);
+        }
+
+        @Override
+        public void onComplete() {
+            if (body.isDone()) return;
+            try {
+                channel.close();
+                body.complete(file);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Throwable t) {
+            if (body.isDone()) return;
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                // deleting it anyway
+            }
+            deleteQuietly(file);
+            body.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Concurrency limit for one origin host. Tasks only start an async exchange, so a task
+     * released into a free slot runs on whichever thread freed it.
+     */
+    private static final class HostLimiter {
+        private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+        private int active;
+
+        boolean submit(Runnable task) {
+            synchronized (this) {
+                if (active >= PER_HOST) {
+                    if (waiting.size() >= PER_HOST_QUEUE) return false;
+                    waiting.add(task);
+                    return true;
+                }
+                active++;
+            }
+            task.run();
+            return true;
+        }
+
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    active--;
+                    return;
+                }
+            }
+            next.run();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package servlets;
 
 import com.google.gson.JsonObject;
+import dao.CartCache;
 import dao.CartDao;
 import model.User;
 import utils.LoggerUtil;
@@ -43,6 +44,7 @@ public class ReorderServlet extends HttpServlet {
         try {
             int orderId = Integer.parseInt(request.getParameter("orderId"));
             cartDao.reorderItems(user.getId(), orderId);
+            CartCache.getInstance().invalidate(user.getId());
             jsonResponse.addProperty("status", "ok");
         } catch (NumberFormatException e) {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
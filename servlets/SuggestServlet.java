@@ -0,0 +1,62 @@
+package servlets;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.stream.JsonWriter;
+
+import dao.SuggestIndex;
+
+/**
+ * Search-box typeahead: GET /SuggestServlet?q=sam&limit=8
+ * returns [{"type":"product"|"category","id":..,"text":".."}, ...], best first.
+ * Served from SuggestIndex only, no DB access per keystroke.
+ */
+@WebServlet("/SuggestServlet")
+public class SuggestServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private static final int DEFAULT_LIMIT = 8;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        int limit = DEFAULT_LIMIT;
+        String limitParam = request.getParameter("limit");
+        if (limitParam != null && !limitParam.isEmpty()) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().print("{\"error\":\"Invalid limit\"}");
+                return;
+            }
+        }
+
+        List<SuggestIndex.Suggestion> suggestions = SuggestIndex.getInstance().suggest(request.getParameter("q"), limit);
+
+        // suggestions only change when the catalog does; let the browser reuse them briefly
+        response.setHeader("Cache-Control", "public, max-age=60");
+        JsonWriter w = JsonStreaming.writer(request, response);
+        w.beginArray();
+        for (SuggestIndex.Suggestion s : suggestions) {
+            w.beginObject();
+            w.name("type").value(s.getType());
+            w.name("id").value(s.getId());
+            w.name("text").value(s.getText());
+            w.endObject();
+        }
+        w.endArray();
+        w.flush();
+    }
+}
@@ -3,7 +3,6 @@ package servlets;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import javax.servlet.annotation.WebServlet;
@@ -14,7 +13,9 @@ import javax.servlet.http.HttpSession;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 
+import dao.ImageVariants;
 import dao.WishlistDao;
 import model.Product;
 
@@ -74,8 +75,14 @@ public class WishlistServlet extends HttpServlet {
         }
 
         try {
-            List<Product> products = wishlistDao.getWishlistProducts(userId);
-            resp.getWriter().print(gson.toJson(products));
+            JsonWriter w = JsonStreaming.writer(req, resp);
+            w.beginArray();
+            wishlistDao.forEachWishlistProduct(userId, p -> {
+                p.setImageUrl(ImageServlet.productImageUrl(req.getContextPath(), p.getProductId(), ImageVariants.Size.CARD));
+                gson.toJson(p, Product.class, w);
+            });
+            w.endArray();
+            w.flush();
         } catch (Exception e) {
             resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             resp.getWriter().print(gson.toJson(Map.of("error", "DB error")));
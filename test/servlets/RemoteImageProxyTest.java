@@ -0,0 +1,248 @@
+package servlets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * RemoteImageProxy against a local stand-in origin (com.sun.net.httpserver) on an ephemeral port.
+ *
+ * The proxy reads its limits once, when the class loads, so they are set in setUpClass: one
+ * fetch at a time per host with one more queued, and a 64 KB object cap.
+ */
+public class RemoteImageProxyTest {
+
+    private static final int MAX_OBJECT_KB = 64;
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 1, 2, 3, 4};
+
+    private static HttpServer server;
+    private static ExecutorService serverThreads;
+    private static String origin;
+
+    private Path cacheDir;
+    private RemoteImageProxy proxy;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        System.setProperty("image.proxy.perHostConcurrency", "1");
+        System.setProperty("image.proxy.perHostQueue", "1");
+        System.setProperty("image.proxy.maxObjectKb", String.valueOf(MAX_OBJECT_KB));
+        System.setProperty("image.proxy.ttlMs", String.valueOf(60 * 60_000L));
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // handlers block in some tests, so they must not run on the server's own thread
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        origin = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = Files.createTempDirectory("image-proxy-test");
+        System.setProperty("image.proxy.cacheDir", cacheDir.toString());
+        proxy = RemoteImageProxy.getInstance();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        RemoteImageProxy.shutdown();
+        try (Stream<Path> files = Files.walk(cacheDir)) {
+            for (Path p : files.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) Files.deleteIfExists(p);
+        }
+    }
+
+    @Test
+    public void servesCachedCopyWithinTtl() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        URI uri = serve("/hit.png", exchange -> {
+            requests.incrementAndGet();
+            respond(exchange, 200, "image/png", PNG);
+        });
+
+        Path fetched = proxy.fetch(uri).get(5, TimeUnit.SECONDS);
+        assertArrayEquals(PNG, Files.readAllBytes(fetched));
+        assertTrue(fetched.getFileName().toString().endsWith(".png"));
+
+        assertEquals(fetched, proxy.fresh(uri.toString()));
+        assertEquals(fetched, proxy.fresh(uri.toString()));
+        assertEquals(1, requests.get());
+        assertEquals(2L, proxy.stats().get("hits"));
+    }
+
+    @Test
+    public void keepsStaleCopyWhenRefetchFails() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        URI uri = serve("/flaky.png", exchange -> {
+            if (requests.incrementAndGet() == 1) respond(exchange, 200, "image/png", PNG);
+            else respond(exchange, 500, "text/plain", "down".getBytes());
+        });
+
+        Path fetched = proxy.fetch(uri).get(5, TimeUnit.SECONDS);
+        // age the copy past its TTL
+        Files.setLastModifiedTime(fetched, FileTime.fromMillis(System.currentTimeMillis() - 2 * 60 * 60_000L));
+        assertNull(proxy.fresh(uri.toString()));
+
+        expectFailure(proxy.fetch(uri));
+        assertEquals(2, requests.get());
+        Path stale = proxy.stale(uri.toString());
+        assertEquals(fetched, stale);
+        assertArrayEquals(PNG, Files.readAllBytes(stale));
+    }
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        URI uri = serve("/shared.png", exchange -> {
+            requests.incrementAndGet();
+            await(release);
+            respond(exchange, 200, "image/png", PNG);
+        });
+
+        CompletableFuture<Path> first = proxy.fetch(uri);
+        CompletableFuture<Path> second = proxy.fetch(uri);
+        assertSame(first, second);
+        release.countDown();
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, requests.get());
+        assertEquals(1L, proxy.stats().get("fetches"));
+    }
+
+    @Test
+    public void refusesOnceHostQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HttpHandler slow = exchange -> {
+            await(release);
+            respond(exchange, 200, "image/png", PNG);
+        };
+        URI running = serve("/slow-1.png", slow);
+        URI queued = serve("/slow-2.png", slow);
+        URI refused = serve("/slow-3.png", slow);
+
+        CompletableFuture<Path> a = proxy.fetch(running);
+        CompletableFuture<Path> b = proxy.fetch(queued);
+        assertNotNull(a);
+        assertNotNull(b);
+        // ImageServlet answers 503 with Retry-After for this
+        assertNull(proxy.fetch(refused));
+        assertEquals(1L, proxy.stats().get("rejected"));
+
+        release.countDown();
+        assertNotNull(a.get(5, TimeUnit.SECONDS));
+        assertNotNull(b.get(5, TimeUnit.SECONDS));
+        assertNotNull(proxy.fetch(refused).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelsOversizedBodyWithoutContentLength() throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        URI uri = serve("/huge.png", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, 0); // chunked, no Content-Length
+            byte[] chunk = new byte[8 * 1024];
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 1024; i++) {
+                    out.write(chunk);
+                    sent.addAndGet(chunk.length);
+                }
+            } catch (IOException e) {
+                // the proxy hung up, as it should
+            }
+        });
+
+        Throwable cause = expectFailure(proxy.fetch(uri));
+        assertTrue(cause.getMessage(), cause.getMessage().contains("larger than"));
+        assertTrue("body was read to the end", sent.get() < 8 * 1024 * 1024);
+        assertNull(proxy.stale(uri.toString()));
+        assertEquals(Arrays.asList(), cacheFiles());
+    }
+
+    @Test
+    public void refusesNonImageContentTypes() throws Exception {
+        URI uri = serve("/page.html", exchange -> respond(exchange, 200, "text/html; charset=utf-8", "<html></html>".getBytes()));
+
+        Throwable cause = expectFailure(proxy.fetch(uri));
+        assertTrue(cause.getMessage(), cause.getMessage().contains("Not an image"));
+        assertNull(proxy.stale(uri.toString()));
+        assertEquals(Arrays.asList(), cacheFiles());
+    }
+
+    private static URI serve(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+        return URI.create(origin + path);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Throwable expectFailure(CompletableFuture<Path> future) throws Exception {
+        assertNotNull(future);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("fetch should have failed");
+        return null;
+    }
+
+    private List<String> cacheFiles() throws IOException {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            return files.map(p -> p.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+}
@@ -1,27 +1,60 @@
 package utils;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 
 import org.apache.log4j.Logger;
 
-import servlets.AdminServlet;
-
 public class DBUtils {
-	
+
 	private static final Logger logger =LoggerUtil.getLogger(DBUtils.class);
+
+	// pool sizing; override with -Ddb.pool.* system properties (size against the servlet thread count)
+	private static final int POOL_MAX_SIZE = Integer.getInteger("db.pool.maxSize", 20);
+	private static final int POOL_MIN_IDLE = Integer.getInteger("db.pool.minIdle", 2);
+	private static final long POOL_BORROW_TIMEOUT_MS = Long.getLong("db.pool.borrowTimeoutMs", 5_000L);
+	private static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("db.pool.idleTimeoutMs", 10 * 60_000L);
+	private static final long POOL_LEAK_THRESHOLD_MS = Long.getLong("db.pool.leakThresholdMs", 60_000L);
+
+	private static volatile ConnectionPool pool;
+
 	 public DBUtils() {
-		 
+
 	 }
-	 
+
 	 public static void main(String []args) {
 		 getConnection();
 	 }
 
+     /**
+      * Lend a connection from the shared pool. close() returns it to the pool.
+      */
      public static Connection getConnection(){
      Connection connection=null;
      try {
+           connection=getPool().borrow();
+    }catch(Exception e){
+       logger.error("Could not obtain a database connection", e);
+}
+     return connection;
+}
+
+     /**
+      * Shared pool, created on first use. Exposed so callers can read its gauges.
+      */
+     public static ConnectionPool getPool() throws ClassNotFoundException {
+    	 ConnectionPool p = pool;
+    	 if (p == null) {
+    		 synchronized (DBUtils.class) {
+    			 p = pool;
+    			 if (p == null) {
+    				 p = pool = createPool();
+    			 }
+    		 }
+    	 }
+    	 return p;
+     }
+
+     private static ConnectionPool createPool() throws ClassNotFoundException {
 //            String url=UtilityClass.getProperty("db.url");
 //
 //            String username=UtilityClass.getProperty("db.username");
@@ -29,24 +62,42 @@ public class DBUtils {
 //            String password=UtilityClass.getProperty("db.password");
 //
 //            String driver=UtilityClass.getProperty("db.driver");
-//         
+//
 //            if (url == null || username == null || password == null || driver == null) {
 //	             throw new SQLException("Database connection properties are missing.");
 //            }
-//          
+//
     	 String url="jdbc:sqlserver://localhost:1433;database=SqlTraining";
     	 String username="sa";
-    		 
+
          String password="Root@123";
-            
-            
+
+
         Class.forName("com.microsoft.sqlserver.jdbc.SQLServerDriver");
-            
-           connection=DriverManager.getConnection(url,username,password);
-           logger.info("Connection Executed Successfully");
-    }catch(Exception e){
-       e.printStackTrace();
-}
-     return connection;
-}
+
+        ConnectionPool created = new ConnectionPool(url, username, password,
+                POOL_MAX_SIZE, POOL_MIN_IDLE, POOL_BORROW_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS, POOL_LEAK_THRESHOLD_MS);
+        logger.info("Connection pool created (maxSize=" + POOL_MAX_SIZE + ")");
+        return created;
+     }
+
+     /**
+      * Close the pool; called when the webapp is undeployed.
+      */
+     public static void shutdown() {
+    	 synchronized (DBUtils.class) {
+    		 if (pool != null) {
+    			 pool.shutdown();
+    			 pool = null;
+    		 }
+    	 }
+     }
+
+     /**
+      * Snapshot of the pool gauges, e.g. for logging.
+      */
+     public static String poolStats() {
+    	 ConnectionPool p = pool;
+    	 return p == null ? "pool[not started]" : p.stats();
+     }
 	}
@@ -0,0 +1,201 @@
+package utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Small thread-safe LRU cache with a max entry count and a time-to-live per entry.
+ * With expireAfterAccess the TTL restarts on every hit, i.e. it becomes an idle timeout.
+ * Keeps hit / miss / eviction counters so callers can tell whether it is paying off.
+ */
+public class TtlCache<K, V> {
+
+    private final String name;
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final boolean expireAfterAccess;
+
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public TtlCache(String name, int maxEntries, long ttlMillis) {
+        this(name, maxEntries, ttlMillis, false);
+    }
+
+    public TtlCache(String name, int maxEntries, long ttlMillis, boolean expireAfterAccess) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be > 0");
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    /**
+     * Cached value, or null when absent or expired.
+     */
+    public synchronized V get(K key) {
+        Entry<V> e = map.get(key);
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (e.isExpired(now)) {
+            map.remove(key);
+            expirations.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        if (expireAfterAccess) map.put(key, new Entry<>(e.value, expiry(now)));
+        hits.incrementAndGet();
+        return e.value;
+    }
+
+    /**
+     * Like get, but without touching the hit / miss counters, for reads made on behalf of
+     * another lookup that keeps its own.
+     */
+    public synchronized V peek(K key) {
+        Entry<V> e = map.get(key);
+        if (e == null) return null;
+        long now = System.currentTimeMillis();
+        if (e.isExpired(now)) {
+            map.remove(key);
+            expirations.incrementAndGet();
+            return null;
+        }
+        if (expireAfterAccess) map.put(key, new Entry<>(e.value, expiry(now)));
+        return e.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (value == null) {
+            map.remove(key);
+            return;
+        }
+        map.put(key, new Entry<>(value, expiry(System.currentTimeMillis())));
+        if (map.size() > maxEntries) {
+            Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+            while (map.size() > maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Update the value of a live entry in place, without resetting its TTL or touching the counters.
+     */
+    public synchronized void updateIfPresent(K key, UnaryOperator<V> update) {
+        Entry<V> e = map.get(key);
+        if (e != null && !e.isExpired(System.currentTimeMillis())) {
+            V v = update.apply(e.value);
+            if (v == null) map.remove(key);
+            else map.put(key, new Entry<>(v, e.expiresAt));
+        }
+    }
+
+    private long expiry(long now) {
+        return ttlMillis > 0 ? now + ttlMillis : Long.MAX_VALUE;
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> e = map.remove(key);
+        return e == null ? null : e.value;
+    }
+
+    /**
+     * Drop every expired entry now rather than waiting for it to be looked up or pushed out.
+     */
+    public synchronized void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void removeIf(Predicate<K> keyFilter) {
+        map.keySet().removeIf(keyFilter);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Counters as a map, ready for JSON.
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("name", name);
+        m.put("size", size());
+        m.put("maxEntries", maxEntries);
+        m.put("hits", getHits());
+        m.put("misses", getMisses());
+        m.put("hitRate", Math.round(getHitRate() * 1000.0) / 1000.0);
+        m.put("evictions", getEvictions());
+        m.put("expirations", getExpirations());
+        return m;
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
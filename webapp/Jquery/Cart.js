@@ -110,6 +110,31 @@ $(document).ready(function () {
 
   loadCart();
 
+  // stepper clicks are collected per product and sent as one applyDeltas request
+  const pendingDeltas = {};
+  let deltaTimer = null;
+
+  function queueDelta(pid, delta) {
+    pendingDeltas[pid] = (pendingDeltas[pid] || 0) + delta;
+    clearTimeout(deltaTimer);
+    deltaTimer = setTimeout(flushDeltas, 300);
+  }
+
+  function flushDeltas() {
+    const deltas = {};
+    Object.keys(pendingDeltas).forEach(pid => {
+      if (pendingDeltas[pid] !== 0) deltas[pid] = pendingDeltas[pid];
+      delete pendingDeltas[pid];
+    });
+    if (Object.keys(deltas).length === 0) return;
+    $.post('http://localhost:8080/Ecommerce_Website/CartServlet', { action: 'applyDeltas', deltas: JSON.stringify(deltas) }, function (res) {
+      if (!res || res.status !== 'ok') {
+        if (res && res.message) alert(res.message);
+        loadCart();
+      }
+    }, 'json').fail(loadCart);
+  }
+
   $(document).on('click', '.qty-incr', function (e) {
     e.stopPropagation();
     const pid = $(this).data('id');
@@ -118,22 +143,18 @@ $(document).ready(function () {
     cartItems[idx].qty += 1;
     renderCartFull(cartItems);
     saveCartLocal(cartItems);
-    $.post('http://localhost:8080/Ecommerce_Website/CartServlet', {
-       action: 'update',
-        productId: pid, 
-        qty: cartItems[idx].qty
-       });
+    queueDelta(pid, 1);
   });
 
   $(document).on('click', '.qty-decr', function (e) {
     e.stopPropagation();
     const pid = $(this).data('id');
     const idx = cartItems.findIndex(x => String(x.productId) === String(pid));
-    if (idx < 0) return;
-    cartItems[idx].qty = Math.max(1, cartItems[idx].qty - 1);
+    if (idx < 0 || cartItems[idx].qty <= 1) return;
+    cartItems[idx].qty -= 1;
     renderCartFull(cartItems);
     saveCartLocal(cartItems);
-    $.post('http://localhost:8080/Ecommerce_Website/CartServlet', { action: 'update', productId: pid, qty: cartItems[idx].qty });
+    queueDelta(pid, -1);
   });
 
   $(document).on('click', '.remove', function (e) {
@@ -2,8 +2,26 @@ function toast(msg, ms = 1400) {
   $('#toast').stop(true, true).text(msg).fadeIn(200).delay(ms).fadeOut(300);
 }
 
-function renderOrders(orders) {
-  if (!orders || orders.length === 0) {
+const ORDERS_PAGE_SIZE = 10;
+let nextOrdersCursor = null;
+
+function renderItems(items) {
+  if (!items || items.length === 0) {
+    return '<p class="text-gray-500 text-sm">No items recorded for this order.</p>';
+  }
+  return items.map(item => {
+    return ''
+      + '      <div class="flex justify-between p-2 rounded bg-white shadow-sm">'
+      + `        <div><p class="font-medium text-gray-700">${item.productName}</p>`
+      + `        <p class="text-gray-500 text-sm">Qty: ${item.quantity}</p></div>`
+      + `        <p class="font-semibold text-gray-800">₹${item.price}</p>`
+      + '      </div>';
+  }).join('');
+}
+
+// order summaries only; the lines are fetched when "View Details" is first opened
+function renderOrders(orders, append) {
+  if (!append && (!orders || orders.length === 0)) {
     $('#order-history-container').html(
       '<p class="text-center text-gray-500">You have no previous orders.</p>'
     );
@@ -13,11 +31,12 @@ function renderOrders(orders) {
   let html = '';
   orders.forEach(order => {
     html += ''
-      + '<div class="bg-white rounded-lg shadow-md order-card overflow-hidden">'
+      + `<div class="bg-white rounded-lg shadow-md order-card overflow-hidden" data-order-id="${order.orderId}">`
       + '  <div class="flex justify-between items-center p-4 order-summary">'
       + '    <div>'
       + `      <h2 class="font-semibold text-lg text-gray-800">Order #${order.orderId}</h2>`
       + `      <p class="text-gray-600 text-sm">Placed on: ${new Date(order.orderDate).toLocaleDateString()}</p>`
+      + `      <p class="text-gray-600 text-sm">${order.itemCount} item${order.itemCount === 1 ? '' : 's'} · ${order.status || ''}</p>`
       + `      <p class="text-gray-700 font-bold mt-1 text-lg">Total: ₹${order.totalAmount}</p>`
       + '    </div>'
       + '    <button class="view-details bg-green-600 text-white px-4 py-2 rounded hover:bg-green-700">'
@@ -26,19 +45,7 @@ function renderOrders(orders) {
       + '  </div>'
       + '  <div class="order-details mt-0 hidden">'
       + '    <h3 class="font-semibold text-gray-800 mb-3">Items in this order:</h3>'
-      + '    <div class="space-y-2">';
-
-    html += order.items.map(item => {
-      return ''
-        + '      <div class="flex justify-between p-2 rounded bg-white shadow-sm">'
-        + `        <div><p class="font-medium text-gray-700">${item.productName}</p>`
-        + `        <p class="text-gray-500 text-sm">Qty: ${item.quantity}</p></div>`
-        + `        <p class="font-semibold text-gray-800">₹${item.price}</p>`
-        + '      </div>';
-    }).join('');
-
-    html += ''
-      + '    </div>'
+      + '    <div class="space-y-2 order-items"><p class="text-gray-500 text-sm">Loading...</p></div>'
       + '    <div class="mt-4 flex justify-end">'
       + `      <button class="reorder-btn bg-yellow-500 hover:bg-yellow-600 text-white px-4 py-2 rounded" data-order-id="${order.orderId}">`
       + '        Reorder'
@@ -48,16 +55,32 @@ function renderOrders(orders) {
       + '</div>';
   });
 
-  $('#order-history-container').html(html);
+  $('#load-more-orders').remove();
+  if (append) {
+    $('#order-history-container').append(html);
+  } else {
+    $('#order-history-container').html(html);
+  }
+  if (nextOrdersCursor) {
+    $('#order-history-container').append(
+      '<div id="load-more-orders" class="flex justify-center">'
+      + '  <button class="bg-gray-200 hover:bg-gray-300 text-gray-800 px-4 py-2 rounded">Load more orders</button>'
+      + '</div>'
+    );
+  }
 }
 
-function loadOrderHistory() {
+function loadOrderHistory(append) {
+  const params = { limit: ORDERS_PAGE_SIZE };
+  if (append && nextOrdersCursor) params.after = nextOrdersCursor;
   $.ajax({
     url: 'http://localhost:8080/Ecommerce_Website/OrderHistoryServlet',
     type: 'GET',
     dataType: 'json',
+    data: params,
     success: function (data) {
-      renderOrders(data);
+      nextOrdersCursor = data.nextCursor || null;
+      renderOrders(data.items || [], append);
     },
     error: function () {
       $('#order-history-container').html(
@@ -67,6 +90,18 @@ function loadOrderHistory() {
   });
 }
 
+function loadOrderItems(card) {
+  const container = card.find('.order-items');
+  $.getJSON('http://localhost:8080/Ecommerce_Website/OrderHistoryServlet', { orderId: card.data('order-id') })
+    .done(function (items) {
+      container.html(renderItems(items));
+      card.data('items-loaded', true);
+    })
+    .fail(function () {
+      container.html('<p class="text-red-500 text-sm">Could not load the items of this order.</p>');
+    });
+}
+
 function refreshBadge() {
   const user = localStorage.getItem("user");
   if (!user) {
@@ -162,10 +197,17 @@ $(document).ready(function () {
 
 
   $(document).on('click', '.view-details', function () {
-    const details = $(this).closest('.order-card').find('.order-details');
+    const card = $(this).closest('.order-card');
+    const details = card.find('.order-details');
+    if (!card.data('items-loaded') && !details.is(':visible')) loadOrderItems(card);
     details.slideToggle();
   });
 
+  $(document).on('click', '#load-more-orders button', function () {
+    $(this).prop('disabled', true);
+    loadOrderHistory(true);
+  });
+
   $(document).on('click', '.reorder-btn', function () {
     const orderId = $(this).data('order-id');
     const user = localStorage.getItem("user");
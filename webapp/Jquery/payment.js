@@ -336,6 +336,24 @@ function luhnCheck(num) {
 
   let countdownInterval = null;
   const PAYMENT_KEY = 'payment_in_progress';
+  // Idempotency-Key of the current Pay attempt; kept until the server gives a final answer,
+  // so a retry after a timeout or network error cannot place the order twice
+  const PAYMENT_IDEMPOTENCY_KEY = 'payment_idempotency_key';
+
+  function newIdempotencyKey(){
+    if (window.crypto && typeof window.crypto.randomUUID === 'function') return window.crypto.randomUUID();
+    return Date.now().toString(36) + '-' + Math.random().toString(36).slice(2) + Math.random().toString(36).slice(2);
+  }
+
+  // same key for a retry of the same payment, a fresh one when the payment changed
+  function idempotencyKeyFor(payload){
+    const body = JSON.stringify(payload);
+    const saved = safeParse(localStorage.getItem(PAYMENT_IDEMPOTENCY_KEY));
+    if (saved && saved.key && saved.body === body) return saved.key;
+    const key = newIdempotencyKey();
+    localStorage.setItem(PAYMENT_IDEMPOTENCY_KEY, JSON.stringify({ key: key, body: body }));
+    return key;
+  }
   const PAYMENT_TIMEOUT_MS = 90*1000;
   let ajaxRequest = null;
 
@@ -387,15 +405,19 @@ function luhnCheck(num) {
       couponCode: appliedCoupon ? appliedCoupon.code : null
     };
 
+    const idempotencyKey = idempotencyKeyFor(payload);
+
     ajaxRequest = $.ajax({
       url: 'http://localhost:8080/Ecommerce_Website/PaymentServlet',
       type: 'POST', 
       contentType:'application/json',
+      headers: { 'Idempotency-Key': idempotencyKey },
       data: JSON.stringify(payload),
       xhrFields: { withCredentials: true },
       success:function(resp){
         $('#loaderBox').addClass('hidden'); clearInterval(countdownInterval);
         localStorage.removeItem(PAYMENT_KEY);
+        localStorage.removeItem(PAYMENT_IDEMPOTENCY_KEY);
         if(resp && resp.status==='ok'){
           Swal.fire({ icon:'success', title:'Payment Successful', text:'Order ID: '+resp.orderId, timer:2000, showConfirmButton:false })
             .then(()=>{ localStorage.removeItem('checkoutItems'); window.location.href='../Html/orderhistory.html'; });
@@ -408,6 +430,8 @@ function luhnCheck(num) {
          $('#loaderBox').addClass('hidden');
          clearInterval(countdownInterval);
          localStorage.removeItem(PAYMENT_KEY);
+         // a rejected payment is final; after no answer, 429 or 5xx the order may exist, so a retry keeps the key
+         if (xhr.status >= 400 && xhr.status < 500 && xhr.status !== 429) localStorage.removeItem(PAYMENT_IDEMPOTENCY_KEY);
          let msg = 'Server error';
          try { if (xhr.responseJSON && xhr.responseJSON.message) msg = xhr.responseJSON.message; } catch(e){}
          Swal.fire({ icon:'error', title:'Error', text: msg });